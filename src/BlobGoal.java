@@ -2,7 +2,8 @@
  * A goal to create the largest connected blob of this goal's target
  * colour, anywhere within the Block.
  */
-public class BlobGoal extends Goal {
+public class BlobGoal extends IncrementalGoal {
+    private BlobIndex blobIndex; // The attached tree's blobs.
 
     public BlobGoal(MyColor targetColor) {
 
@@ -12,16 +13,15 @@ public class BlobGoal extends Goal {
     /**
      * Compute the largest blob score for the current tree and the targetColor.
      *
-     * @param blockyTree the tree to be scored
+     * @param array the flattened tree to be scored
      * @return the size of the largest blob
      */
     @Override
-    public int score(BlockyTree blockyTree) {
+    public int score(MyColor[][] array) {
 
         int maxSize;
 
         MyColor targetColor = getColor();
-        MyColor[][] array = blockyTree.flatten();
         int[][] intArray = new int[array.length][array.length];
 
         for (int i = 0; i < array.length; i++) {
@@ -67,6 +67,38 @@ public class BlobGoal extends Goal {
         return blobSize;
     }
 
+    /**
+     * Starts tracking the given tree through its blob index, which it shares with
+     * every other BlobGoal on the same tree.
+     *
+     * @param blockyTree the tree whose moves should update the score
+     */
+    @Override
+    public void attach(BlockyTree blockyTree) {
+        blobIndex = blockyTree.blobIndex();
+        super.attach(blockyTree);
+    }
+
+    @Override
+    public int currentScore() {
+        return blobIndex.largest(getColor());
+    }
+
+    @Override
+    protected void reset(MyColor[][] cells) {
+        // The blob index is kept up to date by the tree itself.
+    }
+
+    @Override
+    protected void update(BoardChange change) {
+        // The blob index has already seen the change.
+    }
+
+    @Override
+    protected boolean hasOwnState() {
+        return false;
+    }
+
     /**
      * A short description of the scoring goal.
      *
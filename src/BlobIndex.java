@@ -0,0 +1,315 @@
+import java.util.Arrays;
+
+/**
+ * The connected blobs of every color on one board, kept up to date move by move,
+ * so the largest blob of any color is known without looking at the board.
+ * <p>
+ * Every cell carries the label of the blob it belongs to, and every label its blob's
+ * size and color. After a move, only the blobs that reach into the changed square or
+ * touch it from outside can split or merge; those are taken apart and labelled again,
+ * and every other blob keeps its label. Each color has a max-heap of blob sizes. Stale
+ * entries for blobs that no longer exist are dropped lazily from the top after each
+ * move, so largest() is a single array read.
+ * <p>
+ * A BlockyTree creates its index on first use (see BlockyTree.blobIndex) and keeps it
+ * as a listener from then on, ahead of the goals that read it. Updates are timed as
+ * "score update Blob Index" (see Instrumentation).
+ */
+public class BlobIndex implements BoardListener {
+    private static final int COLORS = BlockyTree.COLOR_LIST.length;
+
+    private final BlockyTree blockyTree; // For instrumentation.
+    // Cells are numbered row * gridSize + col.
+    private final int gridSize;
+    private final byte[] color; // The COLOR_LIST index of each cell.
+    private final int[] label; // The blob each cell belongs to, 0 while being relabelled.
+    private final int[] queue; // Work queue for labelling a blob.
+    private final int[] dirty; // Cells whose blob was taken apart by the current update.
+
+    // Per label; a size of 0 marks a free label.
+    private int[] blobSize = new int[64];
+    private byte[] blobColor = new byte[64];
+    private int nextLabel = 1;
+    private int[] freeLabels = new int[64];
+    private int freeCount;
+
+    // Per color: the number of blobs, and a max-heap of (size << 32 | label).
+    private final int[] blobCount = new int[COLORS];
+    private final long[][] heap = new long[COLORS][16];
+    private final int[] heapSize = new int[COLORS];
+
+    /**
+     * Labels every blob on a board.
+     *
+     * @param blockyTree the board
+     */
+    public BlobIndex(BlockyTree blockyTree) {
+        this.blockyTree = blockyTree;
+        MyColor[][] cells = blockyTree.flatten();
+        gridSize = cells.length;
+        color = new byte[gridSize * gridSize];
+        label = new int[gridSize * gridSize];
+        queue = new int[gridSize * gridSize];
+        dirty = new int[gridSize * gridSize];
+        reset(cells);
+    }
+
+    /**
+     * Returns the size of the largest blob of a color.
+     *
+     * @param target one of BlockyTree.COLOR_LIST
+     * @return the number of cells in the largest blob, 0 if there is none
+     */
+    public int largest(MyColor target) {
+        int c = colorIndex(target);
+        return heapSize[c] == 0 ? 0 : (int) (heap[c][0] >>> 32);
+    }
+
+    /**
+     * Returns how many separate blobs a color has.
+     *
+     * @param target one of BlockyTree.COLOR_LIST
+     * @return the number of blobs
+     */
+    public int blobCount(MyColor target) {
+        return blobCount[colorIndex(target)];
+    }
+
+    /**
+     * Returns the size of the blob a cell belongs to.
+     *
+     * @param row the cell's row
+     * @param col the cell's column
+     * @return the number of cells in its blob
+     */
+    public int blobSizeAt(int row, int col) {
+        return blobSize[label[row * gridSize + col]];
+    }
+
+    @Override
+    public void boardChanged(BoardChange change) {
+        Instrumentation.ScoreEvent event = Instrumentation.beginScore("Blob Index", true);
+        update(change);
+        Instrumentation.end(event, blockyTree);
+    }
+
+    private void update(BoardChange change) {
+        if (change.isWholeBoard()) {
+            MyColor[][] cells = new MyColor[gridSize][gridSize];
+            for (int i = 0; i < gridSize; i++) {
+                for (int j = 0; j < gridSize; j++) {
+                    cells[i][j] = change.after(i, j);
+                }
+            }
+            reset(cells);
+            return;
+        }
+
+        int top = change.getRow();
+        int left = change.getCol();
+        int end = change.getSize();
+        int dirtyCount = 0;
+
+        for (int i = Math.max(0, top - 1); i <= Math.min(gridSize - 1, top + end); i++) {
+            for (int j = Math.max(0, left - 1); j <= Math.min(gridSize - 1, left + end); j++) {
+                if (label[i * gridSize + j] != 0) {
+                    dirtyCount = removeBlob(i * gridSize + j, dirtyCount);
+                }
+            }
+        }
+
+        for (int i = top; i < top + end; i++) {
+            for (int j = left; j < left + end; j++) {
+                color[i * gridSize + j] = (byte) colorIndex(change.after(i, j));
+            }
+        }
+
+        // Every cell of the square was in a removed blob, so this relabels it too.
+        for (int k = 0; k < dirtyCount; k++) {
+            if (label[dirty[k]] == 0) {
+                labelBlob(dirty[k]);
+            }
+        }
+        for (int c = 0; c < COLORS; c++) {
+            dropStale(c);
+        }
+    }
+
+    private void reset(MyColor[][] cells) {
+        Arrays.fill(label, 0);
+        Arrays.fill(blobSize, 0);
+        nextLabel = 1;
+        freeCount = 0;
+        Arrays.fill(blobCount, 0);
+        Arrays.fill(heapSize, 0);
+
+        for (int i = 0; i < gridSize; i++) {
+            for (int j = 0; j < gridSize; j++) {
+                color[i * gridSize + j] = (byte) colorIndex(cells[i][j]);
+            }
+        }
+        for (int cell = 0; cell < label.length; cell++) {
+            if (label[cell] == 0) {
+                labelBlob(cell);
+            }
+        }
+    }
+
+    /**
+     * Gives a new label to the unlabelled blob containing the start cell.
+     */
+    private void labelBlob(int start) {
+        int id = newLabel();
+        int c = color[start];
+        int head = 0;
+        int tail = 0;
+
+        label[start] = id;
+        queue[tail++] = start;
+        while (head < tail) {
+            int cell = queue[head++];
+            int row = cell / gridSize;
+            int col = cell % gridSize;
+            if (row > 0 && color[cell - gridSize] == c && label[cell - gridSize] == 0) {
+                label[cell - gridSize] = id;
+                queue[tail++] = cell - gridSize;
+            }
+            if (row < gridSize - 1 && color[cell + gridSize] == c && label[cell + gridSize] == 0) {
+                label[cell + gridSize] = id;
+                queue[tail++] = cell + gridSize;
+            }
+            if (col > 0 && color[cell - 1] == c && label[cell - 1] == 0) {
+                label[cell - 1] = id;
+                queue[tail++] = cell - 1;
+            }
+            if (col < gridSize - 1 && color[cell + 1] == c && label[cell + 1] == 0) {
+                label[cell + 1] = id;
+                queue[tail++] = cell + 1;
+            }
+        }
+
+        blobSize[id] = tail;
+        blobColor[id] = (byte) c;
+        blobCount[c]++;
+        push(c, (long) tail << 32 | id);
+    }
+
+    /**
+     * Clears the label of every cell in the blob containing the start cell,
+     * appending those cells to the dirty list. The blob's heap entry is left
+     * behind and dropped once it reaches the top.
+     *
+     * @return the new length of the dirty list
+     */
+    private int removeBlob(int start, int dirtyCount) {
+        int id = label[start];
+        int head = dirtyCount;
+
+        label[start] = 0;
+        dirty[dirtyCount++] = start;
+        while (head < dirtyCount) {
+            int cell = dirty[head++];
+            int row = cell / gridSize;
+            int col = cell % gridSize;
+            if (row > 0 && label[cell - gridSize] == id) {
+                label[cell - gridSize] = 0;
+                dirty[dirtyCount++] = cell - gridSize;
+            }
+            if (row < gridSize - 1 && label[cell + gridSize] == id) {
+                label[cell + gridSize] = 0;
+                dirty[dirtyCount++] = cell + gridSize;
+            }
+            if (col > 0 && label[cell - 1] == id) {
+                label[cell - 1] = 0;
+                dirty[dirtyCount++] = cell - 1;
+            }
+            if (col < gridSize - 1 && label[cell + 1] == id) {
+                label[cell + 1] = 0;
+                dirty[dirtyCount++] = cell + 1;
+            }
+        }
+
+        blobCount[blobColor[id]]--;
+        blobSize[id] = 0;
+        if (freeCount == freeLabels.length) {
+            freeLabels = Arrays.copyOf(freeLabels, freeCount * 2);
+        }
+        freeLabels[freeCount++] = id;
+        return dirtyCount;
+    }
+
+    private int newLabel() {
+        if (freeCount > 0) {
+            return freeLabels[--freeCount];
+        }
+        if (nextLabel == blobSize.length) {
+            blobSize = Arrays.copyOf(blobSize, nextLabel * 2);
+            blobColor = Arrays.copyOf(blobColor, nextLabel * 2);
+        }
+        return nextLabel++;
+    }
+
+    /**
+     * Checks whether a heap entry still describes a blob. A reused label that
+     * happens to have the same color and size again also counts, which is harmless:
+     * there is a blob of that size.
+     */
+    private boolean isLive(int c, long entry) {
+        int id = (int) entry;
+        return blobSize[id] == (int) (entry >>> 32) && blobColor[id] == c;
+    }
+
+    /**
+     * Pops stale entries off the top of a color's heap, and rebuilds the heap once
+     * stale entries make up most of it.
+     */
+    private void dropStale(int c) {
+        if (heapSize[c] > 2 * blobCount[c] + 16) {
+            heapSize[c] = 0;
+            for (int id = 1; id < nextLabel; id++) {
+                if (blobSize[id] != 0 && blobColor[id] == c) {
+                    push(c, (long) blobSize[id] << 32 | id);
+                }
+            }
+        }
+        while (heapSize[c] > 0 && !isLive(c, heap[c][0])) {
+            pop(c);
+        }
+    }
+
+    private void push(int c, long entry) {
+        long[] h = heap[c];
+        if (heapSize[c] == h.length) {
+            h = heap[c] = Arrays.copyOf(h, h.length * 2);
+        }
+        int i = heapSize[c]++;
+        while (i > 0 && h[(i - 1) / 2] < entry) {
+            h[i] = h[(i - 1) / 2];
+            i = (i - 1) / 2;
+        }
+        h[i] = entry;
+    }
+
+    private void pop(int c) {
+        long[] h = heap[c];
+        long last = h[--heapSize[c]];
+        int n = heapSize[c];
+        int i = 0;
+        while (2 * i + 1 < n) {
+            int child = 2 * i + 1;
+            if (child + 1 < n && h[child + 1] > h[child]) {
+                child++;
+            }
+            if (h[child] <= last) {
+                break;
+            }
+            h[i] = h[child];
+            i = child;
+        }
+        h[i] = last;
+    }
+
+    private static int colorIndex(MyColor target) {
+        return target.ordinal() - MyColor.BLUE.ordinal();
+    }
+}
@@ -1,36 +1,38 @@
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+
 /**
  * The "node" for a Block in the game.
  */
 public class Block {
-    private int xPos, yPos; // Top-left corner of the block
-    private int size; // Height and width of the *square* block
     private MyColor color;
     private int level;
     private boolean selected;
-    private static int maxDepth;
+    private int maxDepth;
 
     //    The children are stored in the order
     //    upper-right, upper-left, lower-left, lower-right.
     private Block[] children;
+    // A rearrangement of everything below this Block that has not been carried out
+    // yet (see rearrangeLater); 0 when there is none.
+    private byte pending;
+    // Whether this Block or one below it may have a pending rearrangement.
+    private boolean unsettled;
 
     /**
-     * Initialize the Block.
+     * Initialize the Block. A Block has no position or size of its own; where it is
+     * follows from the path to it, and a Viewport maps that to pixels.
      *
-     * @param xPos     the Block's left coordinate
-     * @param yPos     the Block's top coordinate
-     * @param size     the size of the Block
      * @param color    the Block's color
      * @param level    the distance to the root
      * @param maxDepth the maximum depth allowed in this tree
      */
-    public Block(int xPos, int yPos, int size, MyColor color, int level, int maxDepth) {
+    public Block(MyColor color, int level, int maxDepth) {
         // Initialize this Block to be an un highlighted block.
-        // Use the provided position, size, level, and color to initialize the Block.
-        this.xPos = xPos;
-        this.yPos = yPos;
-        this.size = size;
+        // Use the provided level and color to initialize the Block.
         this.color = color;
         this.level = level;
+        this.maxDepth = maxDepth;
     }
 
     /**
@@ -50,8 +52,6 @@ public class Block {
             children[3] = children[2];
             children[2] = temp;
 
-            updateChildLocations();
-
             for (int i = 0; i < 4; i++) {
                 children[i].horizontalSwap();
             }
@@ -78,8 +78,6 @@ public class Block {
             children[1] = children[2];
             children[2] = temp;
 
-            updateChildLocations();
-
             for (int i = 0; i < 4; i++) {
                 children[i].verticalSwap();
             }
@@ -104,8 +102,6 @@ public class Block {
             children[2] = children[3];
             children[3] = temp;
 
-            updateChildLocations();
-
             for (int i = 0; i < 4; i++) {
                 children[i].rotateClockwise();
             }
@@ -132,8 +128,6 @@ public class Block {
             children[2] = children[1];
             children[1] = temp;
 
-            updateChildLocations();
-
             for (int i = 0; i < 4; i++) {
                 getChildren()[i].rotateCounterclockwise();
             }
@@ -144,69 +138,125 @@ public class Block {
     }
 
     /**
-     * This method breaks the current Block into four randomly colored children.
+     * Rearranges the children in one pass, and theirs the same way, so that child i
+     * becomes the one that was at from[i]. Every combination of swaps and rotations is
+     * such a rearrangement (see BoardSymmetry).
      *
-     * @return false if the Block is at level zero or at the maximum level, true otherwise
+     * @param from the old position of each new child
+     * @return false if no children, true otherwise
      */
-    public boolean smash() {
-        // A Block can be smashed iff it is not the top-level Block and it
-        // is not already at the level of the maximum depth.
-
-        if(level() != 0 || level() != maxDepth){
-            addChildren();
+    public boolean rearrange(int[] from) {
+        if(hasChildren()) {
+            Block[] old = children.clone();
+            for (int i = 0; i < 4; i++) {
+                children[i] = old[from[i]];
+                children[i].rearrange(from);
+            }
             return true;
-        } else {
+        }else {
             return false;
         }
-
     }
 
     /**
-     * Update the position and size of each of the children within this Block.
-     * Also selects a random color for each of the children.
-     * <p>
-     * Ensure that each child is consistent with the position and size of its
-     * parent Block.
-     * <p>
-     * The order is 0 = top right, 1 = top left, 2 = bottom left, 3 = bottom right.
+     * Rearranges everything below a Block under this one by a symmetry, like
+     * BoardSymmetry.apply, but only records it. The children are put in order the
+     * next time they are asked for, and each hands the symmetry on to its own
+     * children the same way, so a move costs the length of its path, and settle()
+     * or a later read does the rest once for all the moves.
+     *
+     * @param path     the child indices leading from this Block to the one to rearrange
+     * @param depth    how many entries of path to follow
+     * @param symmetry the symmetry, 0 to 7 (see BoardSymmetry)
+     * @return false if the path leads to or past a leaf, true otherwise
      */
-    public void updateChildLocations() {
-
-        children[0].xPos = xPos() + size/2;
-        children[0].yPos = yPos();
-        children[0].size = size()/2;
-        children[0].level = level()+1;
-
-        children[1].xPos = xPos();
-        children[1].yPos = yPos();
-        children[1].size = size()/2;
-        children[1].level = level()+1;
+    public boolean rearrangeLater(int[] path, int depth, int symmetry) {
+        Block ref = this;
+        for (int k = 0; k < depth && ref.hasChildren(); k++) {
+            ref.unsettled = true;
+            ref = ref.children[path[k]];
+        }
+        if (!ref.hasChildren()) {
+            return false;
+        }
+        ref.unsettled = true;
+        ref.pending = (byte) BoardSymmetry.compose(ref.pending, symmetry);
+        return true;
+    }
 
-        children[2].xPos = xPos();
-        children[2].yPos = yPos() + size/2;
-        children[2].size = size()/2;
-        children[2].level = level()+1;
+    /**
+     * Carries out every rearrangement rearrangeLater left pending below this Block,
+     * visiting only the Blocks it went through.
+     */
+    public void settle() {
+        if (unsettled) {
+            unsettled = false;
+            if (hasChildren()) {
+                for (int i = 0; i < 4; i++) {
+                    children[i].settle();
+                }
+            }
+        }
+    }
 
-        children[3].xPos = xPos() + size/2;
-        children[3].yPos = yPos() + size/2;
-        children[3].size = size()/2;
-        children[3].level = level()+1;
+    /**
+     * Puts the children in the order a pending rearrangement leaves them, and hands
+     * the rearrangement on to them.
+     */
+    private void applyPending() {
+        Block[] old = children.clone();
+        for (int i = 0; i < 4; i++) {
+            children[i] = old[BoardSymmetry.childIndex(pending, i)];
+            if (children[i].children != null) {
+                children[i].pending = (byte) BoardSymmetry.compose(children[i].pending, pending);
+                children[i].unsettled = true;
+            }
+        }
+        pending = 0;
     }
 
-    public void setSelected() {
-        selected = true;
+    /**
+     * This method breaks the current Block into four randomly colored children.
+     *
+     * @return false if the Block cannot be smashed (see canSmash), true otherwise
+     */
+    public boolean smash() {
+        return smash(ThreadLocalRandom.current());
     }
 
-    public int xPos() {
-        return xPos;
+    /**
+     * Breaks the current Block into four children colored by the given random source.
+     *
+     * @param random where the children's colors come from
+     * @return false if the Block cannot be smashed (see canSmash), true otherwise
+     */
+    public boolean smash(Random random) {
+        if(canSmash()){
+            addChildren(random);
+            return true;
+        } else {
+            return false;
+        }
+
     }
 
-    public int yPos() {
-        return yPos;
+    /**
+     * Tells whether a smash is allowed here. A Block can be smashed iff it is not the
+     * top-level Block and its children would not be deeper than maxDepth + 1, the
+     * deepest level a random tree builds and the finest cell of the board's grid.
+     * <p>
+     * The original check, (level() != 0 || level() != maxDepth), held for every Block,
+     * so the root could be smashed and smashes could go below the grid, where
+     * flattening and scoring cannot place the new Blocks.
+     *
+     * @return true if the Block can be smashed
+     */
+    public boolean canSmash() {
+        return level() != 0 && level() <= maxDepth;
     }
 
-    public int size() {
-        return size;
+    public void setSelected() {
+        selected = true;
     }
 
     public int level() {
@@ -225,6 +275,9 @@ public class Block {
     }
 
     public Block[] getChildren() {
+        if (pending != 0) {
+            applyPending();
+        }
         return children;
     }
 
@@ -232,11 +285,94 @@ public class Block {
         return color;
     }
 
+    /**
+     * Checks whether this Block has four children that are all leaves of one color.
+     *
+     * @return true if the children could be replaced by a single leaf
+     */
+    public boolean hasUniformChildren() {
+        if (!hasChildren()) {
+            return false;
+        }
+        for (int i = 0; i < 4; i++) {
+            if (children[i].hasChildren() || children[i].getColor() != children[0].getColor()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Replaces four uniform leaf children with a single leaf of their color.
+     *
+     * @return false if the children are not uniform, true otherwise
+     */
+    public boolean mergeChildren() {
+        if (!hasUniformChildren()) {
+            return false;
+        }
+        color = children[0].getColor();
+        children = null;
+        pending = 0;
+        return true;
+    }
+
+    /**
+     * Makes a deep copy of this Block and all of its descendants.
+     *
+     * @return the copy, unselected
+     */
+    public Block copy() {
+        Block copy = new Block(color, level, maxDepth);
+        if (hasChildren()) {
+            copy.children = new Block[4];
+            for (int i = 0; i < 4; i++) {
+                copy.children[i] = children[i].copy();
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * Turns this Block into a leaf of the given color, dropping any children.
+     *
+     * @param color the new color
+     */
+    public void clear(MyColor color) {
+        this.color = color;
+        children = null;
+        pending = 0;
+    }
+
     public void addChildren() {
+        addChildren(ThreadLocalRandom.current());
+    }
+
+    /**
+     * Gives this Block four new children with the given colors, e.g. to replay a smash.
+     *
+     * @param colors the children's colors, in the usual child order
+     */
+    public void addChildren(MyColor[] colors) {
+        pending = 0;
+        children = new Block[4];
+        children[0] = new Block(colors[0], level() + 1, maxDepth);
+        children[1] = new Block(colors[1], level() + 1, maxDepth);
+        children[2] = new Block(colors[2], level() + 1, maxDepth);
+        children[3] = new Block(colors[3], level() + 1, maxDepth);
+    }
+
+    /**
+     * Gives this Block four new children with colors from the given random source.
+     *
+     * @param random where the children's colors come from
+     */
+    public void addChildren(Random random) {
+        pending = 0;
         children = new Block[4];
-        children[0] = new Block(xPos() + size()/2, yPos(), size()/2, BlockyTree.COLOR_LIST[(int)(Math.random() * 4)], level() + 1, maxDepth);
-        children[1] = new Block(xPos(), yPos(), size()/2, BlockyTree.COLOR_LIST[(int)(Math.random() * 4)], level() + 1, maxDepth);
-        children[2] = new Block(xPos(), yPos() + size()/2, size()/2, BlockyTree.COLOR_LIST[(int)(Math.random() * 4)], level() + 1, maxDepth);
-        children[3] = new Block(xPos() + size()/2, yPos() + size()/2, size()/2, BlockyTree.COLOR_LIST[(int)(Math.random() * 4)], level() + 1, maxDepth);
+        children[0] = new Block(BlockyTree.COLOR_LIST[random.nextInt(4)], level() + 1, maxDepth);
+        children[1] = new Block(BlockyTree.COLOR_LIST[random.nextInt(4)], level() + 1, maxDepth);
+        children[2] = new Block(BlockyTree.COLOR_LIST[random.nextInt(4)], level() + 1, maxDepth);
+        children[3] = new Block(BlockyTree.COLOR_LIST[random.nextInt(4)], level() + 1, maxDepth);
     }
 }
\ No newline at end of file
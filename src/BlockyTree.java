@@ -1,4 +1,9 @@
 import java.awt.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.function.BooleanSupplier;
 
 /**
  * The tree representing the game state.
@@ -9,6 +14,16 @@ public class BlockyTree {
     private Block root;
     private int maxDepth;
     private Block currentlySelected; // Remember which Block is selected.
+    private boolean autoMerge; // Keep the tree free of uniform quadrants.
+    // The child indices leading from the root to currentlySelected.
+    private int[] selectedPath;
+    private int selectedDepth;
+    private final List<BoardListener> listeners = new ArrayList<>();
+    private final Random random; // Source of colors and subdivisions.
+    private MoveJournal journal; // Null unless journaling is on.
+    private BlobIndex blobIndex; // Null until a BlobGoal or someone else asks for it.
+    private int journalPosition; // The turn the board is at; less than journal.size() after an undo.
+    private int journalOffset; // Where the move at journalPosition starts in the journal.
 
     /**
      * Initializes the game tree.  It ensures there is one random Block.
@@ -16,13 +31,25 @@ public class BlockyTree {
      * @param maxDepth the limiting factor to the depth of the tree
      */
     public BlockyTree(int maxDepth) {
-        int size = 400;
+        this(maxDepth, new Random());
+    }
+
+    /**
+     * Initializes the game tree with its own random source, so that the same seed
+     * always builds the same board and smashes the same way.
+     *
+     * @param maxDepth the limiting factor to the depth of the tree
+     * @param random   the source of every random choice this tree makes
+     */
+    public BlockyTree(int maxDepth, Random random) {
         this.maxDepth = maxDepth;
+        this.random = random;
 
-        root = new Block(0, 0, size, COLOR_LIST[(int)(Math.random() * 3)], 0, maxDepth);
+        root = new Block(COLOR_LIST[random.nextInt(3)], 0, maxDepth);
 
         root.setSelected();
         currentlySelected = root;
+        selectedPath = new int[maxDepth + 2];
     }
 
     /**
@@ -30,20 +57,526 @@ public class BlockyTree {
      * <p>
      * If a Block is not yet at its maximum depth, it can be subdivided;
      * this function must decide whether or not to actually do so. To decide:
-     * - Use Math.random() to generate a random number in the interval [0, 1).
+     * - Use the tree's random source to generate a random number in the interval [0, 1).
      * - Subdivide if the random number is less than Math.exp(-0.25 * level),
      * where level is the level of the Block within the tree.
      * - If a Block is not going to be subdivided, use a random integer to pick a
      * color for it from the list of colors in COLOR_LIST.
      */
     public void buildRandomTree() {
+        MyColor[][] before = listeners.isEmpty() ? null : flatten();
         buildRandomTreeKernel(root);
+        if (autoMerge) {
+            normalize();
+        }
+        fireWholeBoard(before);
+        restartJournal();
+    }
+
+    /**
+     * Replaces the board with a new random tree, reusing this BlockyTree, its root
+     * and its listeners. The root becomes selected.
+     */
+    public void rebuild() {
+        MyColor[][] before = listeners.isEmpty() ? null : flatten();
+        List<BoardListener> saved = new ArrayList<>(listeners);
+        listeners.clear();
+
+        currentlySelected.clearSelected();
+        root.clear(COLOR_LIST[random.nextInt(3)]);
+        root.setSelected();
+        currentlySelected = root;
+        selectedDepth = 0;
+        buildRandomTree();
+
+        listeners.addAll(saved);
+        fireWholeBoard(before);
+    }
+
+    /**
+     * Selects the Block reached by following the given child indices from the root.
+     *
+     * @param path  child indices, each 0 to 3 in the order of Block's children
+     * @param depth how many entries of path to follow
+     * @return false if the path leads past a leaf (the selection is then unchanged)
+     */
+    public boolean select(int[] path, int depth) {
+        Block target = root;
+        for (int k = 0; k < depth; k++) {
+            if (!target.hasChildren()) {
+                return false;
+            }
+            target = target.getChildren()[path[k]];
+        }
+
+        currentlySelected.clearSelected();
+        System.arraycopy(path, 0, selectedPath, 0, depth);
+        selectedDepth = depth;
+        target.setSelected();
+        currentlySelected = target;
+        return true;
+    }
+
+    /**
+     * Returns the child indices leading from the root to the selected Block.
+     *
+     * @return a new array, empty if the root is selected
+     */
+    public int[] getSelectedPath() {
+        return Arrays.copyOf(selectedPath, selectedDepth);
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    public Block getSelected() {
+        return currentlySelected;
+    }
+
+    /**
+     * Turns automatic merging of uniform quadrants on or off.
+     * <p>
+     * Turning it on normalizes the tree right away, collapsing every Block whose four
+     * children are leaves of one color. After that the tree stays minimal by itself:
+     * swaps and rotations only rearrange children, which never makes them uniform,
+     * and a smash rolls again until its four children are not all one color.
+     * <p>
+     * The re-roll changes the game: with auto merging on, a smash never produces
+     * four children of one color, which happens one time in 64 otherwise. With it
+     * off, smash colors are uniform and independent, as they always were.
+     *
+     * @param autoMerge whether to keep the tree minimal
+     */
+    public void setAutoMerge(boolean autoMerge) {
+        this.autoMerge = autoMerge;
+        if (autoMerge) {
+            normalize();
+        }
+    }
+
+    public boolean isAutoMerge() {
+        return autoMerge;
+    }
+
+    /**
+     * Collapses every Block whose children are leaves of one color, bottom up.
+     * If the selected Block is merged away, the Block it was merged into
+     * becomes selected.
+     */
+    public void normalize() {
+        normalizeKernel(root, 0);
+        restartJournal();
+    }
+
+    private void normalizeKernel(Block ref, int depth) {
+        if (!ref.hasChildren()) {
+            return;
+        }
+        for (int i = 0; i < 4; i++) {
+            normalizeKernel(ref.getChildren()[i], depth + 1);
+        }
+        Block[] children = ref.getChildren();
+        if (ref.mergeChildren()) {
+            for (Block child : children) {
+                if (child == currentlySelected) {
+                    child.clearSelected();
+                    ref.setSelected();
+                    currentlySelected = ref;
+                    selectedDepth = depth;
+                }
+            }
+        }
+    }
+
+    /**
+     * Applies a move to the selected Block, telling any listeners which cells it changed.
+     * The changed cells are only captured when someone is listening.
+     *
+     * @param type the move, for instrumentation and the journal
+     * @param move the move, returning whether it succeeded
+     * @return the result of the move
+     */
+    private boolean applyMove(Move type, BooleanSupplier move) {
+        Instrumentation.MoveEvent event = Instrumentation.beginMove(type.methodName());
+        boolean moved = listeners.isEmpty() ? move.getAsBoolean() : applyMoveAndFire(move);
+        if (moved && journal != null) {
+            journalOffset = journal.append(journalPosition, journalOffset, type, selectedPath, selectedDepth,
+                    currentlySelected, root);
+            journalPosition++;
+        }
+        Instrumentation.end(event, moved, this);
+        return moved;
+    }
+
+    private boolean applyMoveAndFire(BooleanSupplier move) {
+        int[] bounds = selectedBounds();
+        int row = bounds[0];
+        int col = bounds[1];
+        int size = bounds[2];
+
+        MyColor[][] before = flattenKernel(currentlySelected, 0, 0, new MyColor[size][size], size);
+        boolean moved = move.getAsBoolean();
+        if (moved) {
+            MyColor[][] after = flattenKernel(currentlySelected, 0, 0, new MyColor[size][size], size);
+            fireChange(new BoardChange(row, col, size, gridSize(), before, after));
+        }
+        return moved;
+    }
+
+    /**
+     * Starts recording moves so they can be undone and redone. Any earlier
+     * recording is dropped, and the current board becomes turn 0.
+     */
+    public void startJournal() {
+        journal = new MoveJournal(root);
+        journalPosition = 0;
+        journalOffset = 0;
+    }
+
+    /**
+     * Stops recording moves and drops the recording.
+     */
+    public void stopJournal() {
+        journal = null;
+    }
+
+    /**
+     * Starts the recording over if there is one, after the board was changed by
+     * something other than a move.
+     */
+    private void restartJournal() {
+        if (journal != null) {
+            startJournal();
+        }
+    }
+
+    public MoveJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * Returns the turn the board is at: the number of recorded moves not undone.
+     *
+     * @return the turn, 0 if nothing is recorded
+     */
+    public int getJournalPosition() {
+        return journalPosition;
+    }
+
+    /**
+     * Undoes the last recorded move that has not been undone.
+     * The root becomes selected.
+     *
+     * @return false if there is nothing to undo
+     */
+    public boolean undo() {
+        return journal != null && journalPosition > 0 && seek(journalPosition - 1);
+    }
+
+    /**
+     * Redoes the most recently undone move. The root becomes selected.
+     *
+     * @return false if there is nothing to redo
+     */
+    public boolean redo() {
+        return journal != null && journalPosition < journal.size() && seek(journalPosition + 1);
+    }
+
+    /**
+     * Puts the board back to how it was after the given number of recorded moves.
+     * Going forward replays from the current turn; going back restores the nearest
+     * snapshot and replays from there, so either way at most a snapshot interval
+     * of moves is replayed. The root becomes selected.
+     *
+     * @param position the turn, 0 to the number of recorded moves
+     * @return false if journaling is off or there is no such turn
+     */
+    public boolean seek(int position) {
+        if (journal == null || position < 0 || position > journal.size()) {
+            return false;
+        }
+        MyColor[][] before = listeners.isEmpty() ? null : flatten();
+
+        currentlySelected.clearSelected();
+        currentlySelected = root;
+        selectedDepth = 0;
+        if (position < journalPosition || journal.snapshotBefore(position) > journalPosition) {
+            journalPosition = journal.snapshotBefore(position);
+            journalOffset = journal.restore(journalPosition, root);
+        }
+        while (journalPosition < position) {
+            journalOffset = journal.read(journalOffset);
+            select(journal.getPath(), journal.getPathLength());
+            replay(journal.getMove(), journal.getSmashColors());
+            journalPosition++;
+        }
+
+        select(selectedPath, 0);
+        fireWholeBoard(before);
+        return true;
+    }
+
+    /**
+     * Makes a recorded move on the selected Block without recording it again.
+     */
+    private void replay(Move move, MyColor[] smashColors) {
+        switch (move) {
+            case HORIZONTAL_SWAP:
+                currentlySelected.horizontalSwap();
+                break;
+            case VERTICAL_SWAP:
+                currentlySelected.verticalSwap();
+                break;
+            case ROTATE_CLOCKWISE:
+                currentlySelected.rotateClockwise();
+                break;
+            case ROTATE_COUNTERCLOCKWISE:
+                currentlySelected.rotateCounterclockwise();
+                break;
+            default:
+                currentlySelected.addChildren(smashColors);
+                break;
+        }
+    }
+
+    /**
+     * Makes the given move on the selected Block.
+     *
+     * @param move   the move
+     * @param player the player making it, who must have a smash left to smash
+     * @return the result of the move
+     */
+    public boolean move(Move move, Player player) {
+        switch (move) {
+            case HORIZONTAL_SWAP:
+                return horizontalSwap();
+            case VERTICAL_SWAP:
+                return verticalSwap();
+            case ROTATE_CLOCKWISE:
+                return rotateClockwise();
+            case ROTATE_COUNTERCLOCKWISE:
+                return rotateCounterclockwise();
+            default:
+                return smash(player);
+        }
+    }
+
+    /**
+     * Makes a move recorded on another copy of the board, e.g. to keep a copy that
+     * another thread scores in step with this one. It works like select followed by
+     * the move, except that a smash needs no Player and gives the Block the recorded
+     * children instead of random ones. Listeners and the journal see it as usual.
+     *
+     * @param path        the child indices leading to the moved Block
+     * @param depth       how many entries of path are used
+     * @param move        the move
+     * @param smashColors for a smash, the colors of the four new children
+     * @return whether the move succeeded
+     */
+    public boolean applyRecorded(int[] path, int depth, Move move, MyColor[] smashColors) {
+        if (!select(path, depth) || (move != Move.SMASH && !currentlySelected.hasChildren())) {
+            return false;
+        }
+        return applyMove(move, () -> {
+            replay(move, smashColors);
+            return true;
+        });
+    }
+
+    /**
+     * Makes every move in a batch, in order, as if by select and move, except that
+     * each run of swaps and rotations on the same Block is combined into the single
+     * rearrangement it adds up to, and only recorded on the Block (see
+     * Block.rearrangeLater). Runs that cancel out change nothing. The Blocks are put
+     * in order in one pass at the end, so a batch costs about the length of each
+     * move's path plus one walk of the Blocks the moves reached, where moving one by
+     * one walks the whole subtree of every move.
+     * <p>
+     * That saving only holds while no listeners are attached. A listener hears about
+     * each run once, but telling it means flattening the run's Block before and after,
+     * which walks that subtree anyway, so with listeners a batch costs about what the
+     * same runs made one by one would.
+     * <p>
+     * The journal records the fewest moves with the same effect. A move on a Block
+     * that does not exist fails like a move on a leaf. The Block of the last move is
+     * left selected.
+     *
+     * @param batch  the moves
+     * @param player the player making them, for smashes; may be null if there are none
+     * @return how many of the moves succeeded
+     */
+    public int apply(MoveBatch batch, Player player) {
+        int[] path = new int[maxDepth + 2];
+        int succeeded = 0;
+        int i = 0;
+        while (i < batch.size()) {
+            if (batch.getPathLength(i) > path.length) {
+                i++;
+                continue;
+            }
+            batch.getPath(i, path);
+            if (!select(path, batch.getPathLength(i))) {
+                i++;
+                continue;
+            }
+            if (batch.getMove(i) == Move.SMASH) {
+                if (player != null && smash(player)) {
+                    succeeded++;
+                }
+                i++;
+                continue;
+            }
+
+            int symmetry = 0;
+            int j = i;
+            while (j < batch.size() && batch.getMove(j) != Move.SMASH && batch.sameBlock(i, j)) {
+                symmetry = BoardSymmetry.compose(symmetry, BoardSymmetry.of(batch.getMove(j)));
+                j++;
+            }
+            if (currentlySelected.hasChildren()) {
+                succeeded += j - i;
+                applySymmetry(symmetry);
+            }
+            i = j;
+        }
+        root.settle();
+        return succeeded;
+    }
+
+    /**
+     * Rearranges the selected Block by a symmetry, left pending on the Block until
+     * something reads below it, and tells listeners and the journal as applyMove does.
+     *
+     * @param symmetry the symmetry; 0 does nothing
+     */
+    private void applySymmetry(int symmetry) {
+        if (symmetry == 0) {
+            return;
+        }
+        Instrumentation.MoveEvent event = Instrumentation.beginMove("apply");
+        Block target = currentlySelected;
+        BooleanSupplier move = () -> root.rearrangeLater(selectedPath, selectedDepth, symmetry);
+        if (listeners.isEmpty()) {
+            move.getAsBoolean();
+        } else {
+            applyMoveAndFire(move);
+        }
+
+        if (journal != null) {
+            Move[] moves = BoardSymmetry.moves(symmetry);
+            for (int k = 0; k < moves.length; k++) {
+                // A snapshot taken between the moves must not include the later ones.
+                boolean partial = k < moves.length - 1 && journal.snapshotsAfter(journalPosition, journalOffset);
+                int rest = 0;
+                for (int m = k + 1; partial && m < moves.length; m++) {
+                    rest = BoardSymmetry.compose(rest, BoardSymmetry.of(moves[m]));
+                }
+                root.rearrangeLater(selectedPath, selectedDepth, BoardSymmetry.inverse(rest));
+                journalOffset = journal.append(journalPosition, journalOffset, moves[k], selectedPath, selectedDepth, target, root);
+                journalPosition++;
+                root.rearrangeLater(selectedPath, selectedDepth, rest);
+            }
+        }
+        Instrumentation.end(event, true, this);
+    }
+
+    /**
+     * Tells the listeners that every cell may have changed.
+     *
+     * @param before the board before the change, or null if nobody was listening
+     */
+    private void fireWholeBoard(MyColor[][] before) {
+        if (before != null) {
+            fireChange(new BoardChange(0, 0, gridSize(), gridSize(), before, flatten()));
+        }
+    }
+
+    private void fireChange(BoardChange change) {
+        for (BoardListener listener : new ArrayList<>(listeners)) {
+            listener.boardChanged(change);
+        }
+    }
+
+    /**
+     * Registers a listener to be told about every change to the board's cells.
+     *
+     * @param listener the listener
+     */
+    public void addBoardListener(BoardListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeBoardListener(BoardListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Returns the blobs of every color on this board. The index is built on the
+     * first call and from then on listens to every move, ahead of any listener
+     * added later, so goals that read it from their own listener see it updated.
+     *
+     * @return the board's blob index
+     */
+    public BlobIndex blobIndex() {
+        if (blobIndex == null) {
+            blobIndex = new BlobIndex(this);
+            addBoardListener(blobIndex);
+        }
+        return blobIndex;
+    }
+
+    /**
+     * Counts the Blocks in the tree.
+     *
+     * @return the number of Blocks, including the root
+     */
+    public int nodeCount() {
+        return nodeCountKernel(root);
+    }
+
+    private int nodeCountKernel(Block ref) {
+        int count = 1;
+        if (ref.hasChildren()) {
+            for (int i = 0; i < 4; i++) {
+                count += nodeCountKernel(ref.getChildren()[i]);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns how many levels the tree currently has below the root.
+     *
+     * @return the level of the deepest Block
+     */
+    public int depth() {
+        return depthKernel(root) - root.level();
+    }
+
+    private int depthKernel(Block ref) {
+        int deepest = ref.level();
+        if (ref.hasChildren()) {
+            for (int i = 0; i < 4; i++) {
+                deepest = Math.max(deepest, depthKernel(ref.getChildren()[i]));
+            }
+        }
+        return deepest;
+    }
+
+    /**
+     * Returns the width (and height) of the flattened board in unit cells.
+     *
+     * @return the number of cells along one side
+     */
+    public int gridSize() {
+        return 1 << (maxDepth - root.level() + 1);
     }
 
     private void buildRandomTreeKernel(Block ref){
-        if(Math.random() < Math.exp(-0.25 * ref.level())){
+        if(random.nextDouble() < Math.exp(-0.25 * ref.level())){
             if(ref.level() <= maxDepth) {
-                ref.addChildren();
+                ref.addChildren(random);
                 for (int i = 0; i < 4; i++) {
                     buildRandomTreeKernel(ref.getChildren()[i]);
                 }
@@ -67,9 +600,12 @@ public class BlockyTree {
      * @return the flattened (array) version of the tree
      */
     public MyColor[][] flatten() {
+        Instrumentation.FlattenEvent event = Instrumentation.beginFlatten();
         MyColor[][] L = new MyColor[(int)Math.pow(2, maxDepth - root.level() + 1)][(int)Math.pow(2, maxDepth - root.level() + 1)];
         int sizeOfBox = (int)Math.pow(2, maxDepth - root.level() + 1);
-        return flattenKernel(root, 0, 0, L, sizeOfBox);
+        flattenKernel(root, 0, 0, L, sizeOfBox);
+        Instrumentation.end(event, this);
+        return L;
     }
 
     private MyColor[][] flattenKernel(Block ref, int row, int col, MyColor[][] array, int aSize){
@@ -96,18 +632,37 @@ public class BlockyTree {
     }
 
     /**
-     * Draws the tree.
+     * Draws the tree in the default 400-pixel viewport.
      *
      * @param g the graphics context
      */
     public void draw(Graphics g) {
-        drawKernel(g, root);
+        draw(g, Viewport.DEFAULT);
+    }
+
+    /**
+     * Draws the tree.
+     *
+     * @param g        the graphics context
+     * @param viewport where on screen to draw the board
+     */
+    public void draw(Graphics g, Viewport viewport) {
+        Instrumentation.RepaintEvent event = Instrumentation.beginRepaint();
+        int gridSize = gridSize();
+        drawKernel(g, root, 0, 0, gridSize, viewport, gridSize);
+
+        int[] bounds = selectedBounds();
+        int top = viewport.y(bounds[0], gridSize);
+        int left = viewport.x(bounds[1], gridSize);
         g.setColor(new Color(61, 233, 233, 100));
-        g.fillRect(currentlySelected.xPos(), currentlySelected.yPos(), currentlySelected.size(), currentlySelected.size());
+        g.fillRect(left, top, viewport.x(bounds[1] + bounds[2], gridSize) - left,
+                viewport.y(bounds[0] + bounds[2], gridSize) - top);
+        Instrumentation.end(event, this);
         }
 
     /**
-     * Private method to draw the tree rooted at ref.
+     * Private method to draw the tree rooted at ref, which covers the cells
+     * from (row, col) to (row + cells, col + cells).
      * <p>
      * Use g.setColor(...), g.fillRect(x, y, w, h), and g.drawLine(x1, y1, x2, y2).
      * To set the strokeWeight, you (unfortunately) have to use:
@@ -116,27 +671,35 @@ public class BlockyTree {
      * @param g
      * @param ref
      */
-    public void drawKernel(Graphics g, Block ref) {
+    private void drawKernel(Graphics g, Block ref, int row, int col, int cells, Viewport viewport, int gridSize) {
         if (ref.hasChildren()) {
-            for (int i = 0; i < 4; i++) {
-                drawKernel(g, ref.getChildren()[i]);
-            }
+            int half = cells / 2;
+            drawKernel(g, ref.getChildren()[0], row, col + half, half, viewport, gridSize);
+            drawKernel(g, ref.getChildren()[1], row, col, half, viewport, gridSize);
+            drawKernel(g, ref.getChildren()[2], row + half, col, half, viewport, gridSize);
+            drawKernel(g, ref.getChildren()[3], row + half, col + half, half, viewport, gridSize);
         } else {
+            int top = viewport.y(row, gridSize);
+            int left = viewport.x(col, gridSize);
+            int bottom = viewport.y(row + cells, gridSize);
+            int right = viewport.x(col + cells, gridSize);
 
             g.setColor(ref.getColor().color());
-            g.fillRect(ref.xPos(), ref.yPos(), ref.size(), ref.size());
+            g.fillRect(left, top, right - left, bottom - top);
 
             g.setColor(Color.BLACK);
-            g.drawLine(ref.xPos(), ref.yPos(), ref.xPos() + ref.size(), ref.yPos());
-            g.drawLine(ref.xPos(), ref.yPos() + ref.size(), ref.xPos(), ref.yPos() + ref.size());
-            g.drawLine(ref.xPos(), ref.yPos() + ref.size(), ref.xPos() + ref.size(), ref.yPos() + ref.size());
-            g.drawLine(ref.xPos() + ref.size(), ref.yPos(), ref.xPos() + ref.size(), ref.yPos() + ref.size());
+            g.drawLine(left, top, right, top);
+            g.drawLine(left, top, left, bottom);
+            g.drawLine(left, bottom, right, bottom);
+            g.drawLine(right, top, right, bottom);
             ((Graphics2D) g).setStroke(new BasicStroke(1));
         }
     }
 
     /**
-     * Replaces the currently selected Block with four random children.
+     * Replaces the currently selected Block with four random children. With auto
+     * merging on, the colors are rolled again until they are not all the same; see
+     * setAutoMerge.
      *
      * @param player the current player to check if allowed to smash
      * @return false if the player has a smash remaining, otherwise returns
@@ -146,12 +709,19 @@ public class BlockyTree {
         if (player.isSmashUsed()) {
             return false;
         }else{
-            if (currentlySelected.smash()) {
-                player.usedSmash();
-                return true;
-            }else{
-                return false;
-            }
+            return applyMove(Move.SMASH, () -> {
+                if (currentlySelected.smash(random)) {
+                    // With auto merging on, four children of one color would make the
+                    // tree non-minimal (and waste the smash), so roll again.
+                    while (autoMerge && currentlySelected.hasUniformChildren()) {
+                        currentlySelected.addChildren(random);
+                    }
+                    player.usedSmash();
+                    return true;
+                }else{
+                    return false;
+                }
+            });
         }
     }
 
@@ -162,7 +732,7 @@ public class BlockyTree {
      * @return result of Block's horizontalSwap
      */
     public boolean horizontalSwap() {
-        return currentlySelected.horizontalSwap();
+        return applyMove(Move.HORIZONTAL_SWAP, currentlySelected::horizontalSwap);
     }
 
     /**
@@ -172,7 +742,7 @@ public class BlockyTree {
      * @return result of Block's verticalSwap
      */
     public boolean verticalSwap() {
-        return currentlySelected.verticalSwap();
+        return applyMove(Move.VERTICAL_SWAP, currentlySelected::verticalSwap);
     }
 
     /**
@@ -182,7 +752,7 @@ public class BlockyTree {
      * @return result of Block's rotateCounterClockwise
      */
     public boolean rotateCounterclockwise() {
-        return currentlySelected.rotateCounterclockwise();
+        return applyMove(Move.ROTATE_COUNTERCLOCKWISE, currentlySelected::rotateCounterclockwise);
     }
 
 
@@ -193,61 +763,192 @@ public class BlockyTree {
      * @return result of Block's rotateClockwise
      */
     public boolean rotateClockwise() {
-        return currentlySelected.rotateClockwise();
+        return applyMove(Move.ROTATE_CLOCKWISE, currentlySelected::rotateClockwise);
     }
 
     /**
-     * Handles selecting the correct Block, based on the most recent click and
-     * who was selected before the click
+     * Returns the root Block of the tree.
+     *
+     * @return the root
+     */
+    public Block getRoot() {
+        return root;
+    }
+
+    /**
+     * Makes an independent copy of the board, e.g. for scoring on another thread.
+     * The copy has its root selected and auto merging off.
+     *
+     * @return the copy
+     */
+    public BlockyTree copy() {
+        BlockyTree copy = new BlockyTree(maxDepth);
+        copy.root = root.copy();
+        copy.root.setSelected();
+        copy.currentlySelected = copy.root;
+        return copy;
+    }
+
+    /**
+     * Rearranges the board into the canonical one of its 8 rotations and reflections.
+     * The selected Block stays selected, wherever it ends up.
+     *
+     * @return the symmetry that was applied (see BoardSymmetry)
+     */
+    public int canonicalize() {
+        int symmetry = BoardSymmetry.canonicalSymmetry(root);
+        MyColor[][] before = listeners.isEmpty() ? null : flatten();
+        BoardSymmetry.apply(root, symmetry);
+
+        // Every Block on the path to the selection has moved to the position
+        // that now shows it.
+        for (int k = 0; k < selectedDepth; k++) {
+            for (int i = 0; i < 4; i++) {
+                if (BoardSymmetry.childIndex(symmetry, i) == selectedPath[k]) {
+                    selectedPath[k] = i;
+                    break;
+                }
+            }
+        }
+        fireWholeBoard(before);
+        restartJournal();
+        return symmetry;
+    }
+
+    /**
+     * Returns a key identifying the board up to rotation and reflection, without
+     * changing the board. Uniform quadrants are merged first, so boards that look
+     * the same get the same key however their Blocks are split.
+     *
+     * @return the encoding of the canonical view of the merged board
+     */
+    public byte[] canonicalKey() {
+        Block merged = mergedRoot();
+        return BoardSymmetry.encode(merged, BoardSymmetry.canonicalSymmetry(merged));
+    }
+
+    /**
+     * Returns a hash that is the same for all 8 rotations and reflections of the board,
+     * and, like canonicalKey, for every way of splitting it into Blocks.
+     *
+     * @return the hash of the canonical view of the merged board
+     */
+    public long symmetryHash() {
+        Block merged = mergedRoot();
+        return BoardSymmetry.hash(merged, BoardSymmetry.canonicalSymmetry(merged));
+    }
+
+    /**
+     * Returns a copy of the board with every uniform quadrant merged into one leaf.
+     */
+    private Block mergedRoot() {
+        Block merged = root.copy();
+        mergeKernel(merged);
+        return merged;
+    }
+
+    private static void mergeKernel(Block ref) {
+        if (ref.hasChildren()) {
+            for (int i = 0; i < 4; i++) {
+                mergeKernel(ref.getChildren()[i]);
+            }
+            ref.mergeChildren();
+        }
+    }
+
+    /**
+     * Handles a click on the board drawn in the default 400-pixel viewport.
      *
      * @param x coordinate of the click
      * @param y coordinate of the click
      */
     public void processClick(int x, int y) {
-        if (x < 0 || x > root.xPos() + root.size() || y < 0 || y > root.yPos() + root.size()) {
+        processClick(x, y, Viewport.DEFAULT);
+    }
+
+    /**
+     * Handles selecting the correct Block, based on the most recent click and
+     * who was selected before the click
+     *
+     * @param x        coordinate of the click
+     * @param y        coordinate of the click
+     * @param viewport where on screen the board is drawn
+     */
+    public void processClick(int x, int y, Viewport viewport) {
+        int gridSize = gridSize();
+        int row = viewport.row(y, gridSize);
+        int col = viewport.col(x, gridSize);
+        if (row < 0 || col < 0) {
             System.out.println("Clicked outside of game board.");
             return;
         }
 
         if (currentlySelected == null) {
             currentlySelected = root;
+            selectedDepth = 0;
             root.setSelected();
         } else {
-            if (withinBlock(currentlySelected, x, y)) {
+            int[] bounds = selectedBounds();
+            if (withinBlock(bounds[0], bounds[1], bounds[2], row, col)) {
                 if (currentlySelected.hasChildren()) {
                     // If so, try to go one level deeper below that block.
                     // I.e., find the child of the currently that was clicked (if one exists) and select it.
                     currentlySelected.clearSelected();
-                    for (Block block : currentlySelected.getChildren()) { // Could be a while, but...
-                        if (withinBlock(block, x, y)) {
-                            block.setSelected();
-                            currentlySelected = block;
+                    Block[] children = currentlySelected.getChildren();
+                    int half = bounds[2] / 2;
+                    for (int i = 0; i < 4; i++) { // Could be a while, but...
+                        int childRow = i >= 2 ? bounds[0] + half : bounds[0];
+                        int childCol = i == 0 || i == 3 ? bounds[1] + half : bounds[1];
+                        if (withinBlock(childRow, childCol, half, row, col)) {
+                            children[i].setSelected();
+                            currentlySelected = children[i];
+                            selectedPath[selectedDepth++] = i;
+                            break;
                         }
                     }
                 }
             } else {
                 currentlySelected.clearSelected();
                 currentlySelected = root;
+                selectedDepth = 0;
                 root.setSelected();
             }
         }
     }
 
     /**
-     * Helper function to determine if the (x,y) position is within the given Block.
+     * Returns the cells the selected Block covers, worked out from the path to it.
      *
-     * @param ref the Block to be checked
-     * @param x   coordinate to be checked
-     * @param y   coordinate to be checked
-     * @return whether the (x,y) falls within the Block
+     * @return its top row, left column and width in cells
      */
-    private boolean withinBlock(Block ref, int x, int y) {
-        // Check to see if the click was within the block.
-        int currMinX = ref.xPos();
-        int currMaxX = ref.xPos() + ref.size();
-        int currMinY = ref.yPos();
-        int currMaxY = ref.yPos() + ref.size();
+    private int[] selectedBounds() {
+        int size = gridSize();
+        int row = 0;
+        int col = 0;
+        for (int k = 0; k < selectedDepth; k++) {
+            size /= 2;
+            if (selectedPath[k] == 0 || selectedPath[k] == 3) {
+                col += size;
+            }
+            if (selectedPath[k] >= 2) {
+                row += size;
+            }
+        }
+        return new int[]{row, col, size};
+    }
 
-        return x >= currMinX && x < currMaxX && y >= currMinY && y < currMaxY;
+    /**
+     * Helper function to determine if a cell is within the given Block.
+     *
+     * @param top   the Block's top row
+     * @param left  the Block's left column
+     * @param cells the Block's width in cells
+     * @param row   row of the cell to be checked
+     * @param col   column of the cell to be checked
+     * @return whether the cell falls within the Block
+     */
+    private boolean withinBlock(int top, int left, int cells, int row, int col) {
+        // Check to see if the click was within the block.
+        return col >= left && col < left + cells && row >= top && row < top + cells;
     }
 }
\ No newline at end of file
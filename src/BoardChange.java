@@ -0,0 +1,92 @@
+/**
+ * The effect of one move on the flattened board: the square of unit cells covered
+ * by the moved Block, together with their colors before and after the move.
+ * <p>
+ * Coordinates are in unit cells of BlockyTree.flatten(), so the cell at (row, col)
+ * of the board is before[row - getRow()][col - getCol()] inside the square.
+ */
+public class BoardChange {
+    private final int row;
+    private final int col;
+    private final int size;
+    private final int gridSize;
+    private final MyColor[][] before;
+    private final MyColor[][] after;
+
+    /**
+     * Records a change.
+     *
+     * @param row      the top row of the changed square
+     * @param col      the left column of the changed square
+     * @param size     the width and height of the changed square, in cells
+     * @param gridSize the width and height of the whole board, in cells
+     * @param before   the square's cells before the move
+     * @param after    the square's cells after the move
+     */
+    public BoardChange(int row, int col, int size, int gridSize, MyColor[][] before, MyColor[][] after) {
+        this.row = row;
+        this.col = col;
+        this.size = size;
+        this.gridSize = gridSize;
+        this.before = before;
+        this.after = after;
+    }
+
+    public int getRow() {
+        return row;
+    }
+
+    public int getCol() {
+        return col;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public int getGridSize() {
+        return gridSize;
+    }
+
+    /**
+     * Returns the old color of a board cell inside the changed square.
+     *
+     * @param r the board row
+     * @param c the board column
+     * @return the color before the move
+     */
+    public MyColor before(int r, int c) {
+        return before[r - row][c - col];
+    }
+
+    /**
+     * Returns the new color of a board cell inside the changed square.
+     *
+     * @param r the board row
+     * @param c the board column
+     * @return the color after the move
+     */
+    public MyColor after(int r, int c) {
+        return after[r - row][c - col];
+    }
+
+    /**
+     * Checks whether a board cell lies inside the changed square.
+     *
+     * @param r the board row
+     * @param c the board column
+     * @return true if the cell is inside
+     */
+    public boolean contains(int r, int c) {
+        return r >= row && r < row + size && c >= col && c < col + size;
+    }
+
+    /**
+     * Checks whether the change covers the whole board, e.g. after a new tree is built.
+     *
+     * @return true if every cell may have changed
+     */
+    public boolean isWholeBoard() {
+        return size == gridSize;
+    }
+}
@@ -0,0 +1,12 @@
+/**
+ * Something that wants to hear about every change to the cells of a BlockyTree,
+ * e.g. a goal that keeps its score up to date incrementally.
+ */
+public interface BoardListener {
+    /**
+     * Called after a move has changed the board.
+     *
+     * @param change the square of cells the move touched, with its old and new contents
+     */
+    void boardChanged(BoardChange change);
+}
@@ -0,0 +1,277 @@
+import java.io.ByteArrayOutputStream;
+
+/**
+ * The eight symmetries of the square board and a canonical form of a tree under them.
+ * <p>
+ * Symmetry s (0 <= s < 8) is "swap horizontally if s >= 4, then rotate clockwise
+ * (s % 4) times", applied at the root. Since every move recurses through the whole
+ * subtree, viewing a Block under s only permutes the order in which its children are
+ * visited, so no copy of the tree is ever needed to compare or hash the 8 variants.
+ * <p>
+ * PerimeterGoal and BlobGoal score all 8 variants the same, so the canonical key and
+ * hash can be used to dedupe positions in caches, record stores and search. Like the
+ * encoding, compare and hash see the tree's structure, not just the board it draws.
+ */
+public final class BoardSymmetry {
+    public static final int COUNT = 8;
+
+    // Byte written for a Block with children; leaves write their color's ordinal,
+    // which is never 0 for a color in COLOR_LIST.
+    private static final int INTERNAL = 0;
+
+    // PERMUTATIONS[s][i] is childIndex(s, i), for Block.rearrange.
+    private static final int[][] PERMUTATIONS = new int[COUNT][4];
+    // COMPOSED[a][b] is the symmetry equal to applying a, then b.
+    private static final int[][] COMPOSED = new int[COUNT][COUNT];
+    // The moves that make up each symmetry, by the definition above.
+    private static final Move[][] MOVES = {
+            {},
+            {Move.ROTATE_CLOCKWISE},
+            {Move.ROTATE_CLOCKWISE, Move.ROTATE_CLOCKWISE},
+            {Move.ROTATE_COUNTERCLOCKWISE},
+            {Move.HORIZONTAL_SWAP},
+            {Move.HORIZONTAL_SWAP, Move.ROTATE_CLOCKWISE},
+            {Move.VERTICAL_SWAP},
+            {Move.HORIZONTAL_SWAP, Move.ROTATE_COUNTERCLOCKWISE},
+    };
+
+    static {
+        for (int s = 0; s < COUNT; s++) {
+            for (int i = 0; i < 4; i++) {
+                PERMUTATIONS[s][i] = childIndex(s, i);
+            }
+        }
+        // Applying a, then b, puts original child childIndex(a, childIndex(b, i)) at i.
+        for (int a = 0; a < COUNT; a++) {
+            for (int b = 0; b < COUNT; b++) {
+                for (int s = 0; s < COUNT; s++) {
+                    boolean same = true;
+                    for (int i = 0; i < 4; i++) {
+                        same &= childIndex(s, i) == childIndex(a, childIndex(b, i));
+                    }
+                    if (same) {
+                        COMPOSED[a][b] = s;
+                    }
+                }
+            }
+        }
+    }
+
+    private BoardSymmetry() {
+    }
+
+    /**
+     * Returns which of the original children appears at position i when a Block is
+     * viewed under the given symmetry.
+     *
+     * @param symmetry the symmetry, 0 to 7
+     * @param i        the child position, in the usual
+     *                 upper-right, upper-left, lower-left, lower-right order
+     * @return the index of the original child at that position
+     */
+    public static int childIndex(int symmetry, int i) {
+        int rotated = (i + symmetry) & 3;
+        return symmetry >= 4 ? rotated ^ 1 : rotated;
+    }
+
+    /**
+     * Finds the symmetry whose view of the tree has the smallest encoding.
+     * Ties (symmetric boards) go to the lowest symmetry number.
+     *
+     * @param root the root of the tree
+     * @return the canonical symmetry, 0 to 7
+     */
+    public static int canonicalSymmetry(Block root) {
+        int best = 0;
+        for (int s = 1; s < COUNT; s++) {
+            if (compare(root, s, root, best) < 0) {
+                best = s;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Compares two Blocks, each viewed under a symmetry, in the order of their encodings.
+     * Stops at the first differing node.
+     *
+     * @param a  the first Block
+     * @param sa the symmetry to view a under
+     * @param b  the second Block
+     * @param sb the symmetry to view b under
+     * @return negative, zero or positive as a is less than, equal to or greater than b
+     */
+    public static int compare(Block a, int sa, Block b, int sb) {
+        if (!a.hasChildren() || !b.hasChildren()) {
+            return Integer.compare(code(a), code(b));
+        }
+        for (int i = 0; i < 4; i++) {
+            int c = compare(a.getChildren()[childIndex(sa, i)], sa, b.getChildren()[childIndex(sb, i)], sb);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Hashes the tree as seen under the given symmetry.
+     *
+     * @param root     the root of the tree
+     * @param symmetry the symmetry to view the tree under
+     * @return a 64-bit hash of the view
+     */
+    public static long hash(Block root, int symmetry) {
+        if (!root.hasChildren()) {
+            return mix(code(root) + 1);
+        }
+        long h = mix(INTERNAL + 1);
+        for (int i = 0; i < 4; i++) {
+            h = mix(h * 31 + hash(root.getChildren()[childIndex(symmetry, i)], symmetry));
+        }
+        return h;
+    }
+
+    /**
+     * Encodes the tree as seen under the given symmetry, one byte per Block in pre-order.
+     * Two trees have equal encodings exactly when they have the same Blocks and colors.
+     * Trees that draw the same board can still differ, when one splits a uniform
+     * quadrant that the other leaves whole; merge those first to compare boards, as
+     * BlockyTree.canonicalKey does.
+     *
+     * @param root     the root of the tree
+     * @param symmetry the symmetry to view the tree under
+     * @return the encoding
+     */
+    public static byte[] encode(Block root, int symmetry) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        encode(root, symmetry, out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Appends the encoding of the tree as seen under the given symmetry to a buffer.
+     *
+     * @param root     the root of the tree
+     * @param symmetry the symmetry to view the tree under
+     * @param out      the buffer to append to
+     */
+    public static void encode(Block root, int symmetry, ByteArrayOutputStream out) {
+        encodeKernel(root, symmetry, out);
+    }
+
+    private static void encodeKernel(Block ref, int symmetry, ByteArrayOutputStream out) {
+        out.write(code(ref));
+        if (ref.hasChildren()) {
+            for (int i = 0; i < 4; i++) {
+                encodeKernel(ref.getChildren()[childIndex(symmetry, i)], symmetry, out);
+            }
+        }
+    }
+
+    /**
+     * Rebuilds a tree in place from an encoding made by encode.
+     *
+     * @param codes the encoding
+     * @param root  the root to rebuild; it keeps its level, and its children are
+     *              replaced by the decoded ones
+     */
+    public static void decode(byte[] codes, Block root) {
+        decodeKernel(codes, root, new int[1]);
+    }
+
+    private static void decodeKernel(byte[] codes, Block ref, int[] next) {
+        int code = codes[next[0]++];
+        if (code == INTERNAL) {
+            ref.addChildren(BlockyTree.COLOR_LIST);
+            for (int i = 0; i < 4; i++) {
+                decodeKernel(codes, ref.getChildren()[i], next);
+            }
+        } else {
+            ref.clear(MyColor.values()[code]);
+        }
+    }
+
+    /**
+     * Rearranges the tree in place so that it becomes its view under the given symmetry.
+     *
+     * @param root     the root of the tree
+     * @param symmetry the symmetry to apply
+     */
+    public static void apply(Block root, int symmetry) {
+        if (symmetry != 0) {
+            root.rearrange(PERMUTATIONS[symmetry]);
+        }
+    }
+
+    /**
+     * Returns the symmetry a swap or rotation applies to the Block it is made on.
+     *
+     * @param move any move but SMASH
+     * @return the symmetry, 1 to 7
+     */
+    public static int of(Move move) {
+        switch (move) {
+            case ROTATE_CLOCKWISE:
+                return 1;
+            case ROTATE_COUNTERCLOCKWISE:
+                return 3;
+            case HORIZONTAL_SWAP:
+                return 4;
+            case VERTICAL_SWAP:
+                return 6;
+            default:
+                throw new IllegalArgumentException(move + " is not a symmetry");
+        }
+    }
+
+    /**
+     * Combines two symmetries into one.
+     *
+     * @param first the symmetry applied first
+     * @param then  the symmetry applied after it
+     * @return the symmetry with the same effect as both
+     */
+    public static int compose(int first, int then) {
+        return COMPOSED[first][then];
+    }
+
+    /**
+     * Returns the symmetry that undoes another.
+     *
+     * @param symmetry the symmetry, 0 to 7
+     * @return its inverse
+     */
+    public static int inverse(int symmetry) {
+        for (int s = 0; s < COUNT; s++) {
+            if (COMPOSED[symmetry][s] == 0) {
+                return s;
+            }
+        }
+        throw new IllegalStateException("No inverse for symmetry " + symmetry);
+    }
+
+    /**
+     * Lists the fewest moves that apply a symmetry: none for the identity,
+     * two for a half turn or a diagonal reflection, and one otherwise.
+     *
+     * @param symmetry the symmetry, 0 to 7
+     * @return the moves, in order; the array must not be modified
+     */
+    public static Move[] moves(int symmetry) {
+        return MOVES[symmetry];
+    }
+
+    private static int code(Block ref) {
+        return ref.hasChildren() ? INTERNAL : ref.getColor().ordinal();
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,229 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Solves small boards exhaustively and writes the results as an EndgameTable.
+ * <p>
+ * Usage: java EndgameSolver [depth=N] [turns=N] [boards=N] [seed=N] [out=FILE]
+ * <p>
+ * Starting from random boards, the solver visits every position reachable with the
+ * swap and rotate moves and works out, for each goal and color, the best score
+ * reachable within k more moves, for every k up to turns:
+ * <pre>
+ *   best(p, 0) = score(p)
+ *   best(p, k) = max(best(p, k - 1), best(q, k - 1) for every move p to q)
+ * </pre>
+ * Smash is left out, since its outcome is random. Swaps and rotations only rearrange
+ * a board, so every position reachable from a start has the same Blocks in a different
+ * arrangement; positions are stored once per rotation and reflection. They are also
+ * stored once however uniform quadrants are split (see BlockyTree.canonicalKey): moves
+ * inside a uniform quadrant change nothing, so the merged board, which the solver
+ * goes on from, reaches the same boards. At maxDepth 2
+ * each position has at most 84 moves, so a few turns from a start are quick to solve.
+ */
+public class EndgameSolver {
+    private static final Move[] MOVES = {
+            Move.HORIZONTAL_SWAP, Move.VERTICAL_SWAP, Move.ROTATE_CLOCKWISE, Move.ROTATE_COUNTERCLOCKWISE
+    };
+
+    private final int maxDepth;
+    private final int maxTurns;
+    private final Goal[] goals = new Goal[EndgameTable.SCORES];
+    // solved.get(k) maps a canonical board encoding to its best scores with k moves left.
+    private final List<Map<ByteBuffer, Solved>> solved = new ArrayList<>();
+    // One scratch board per number of moves left, so the recursion never shares one.
+    private final BlockyTree[] boards;
+
+    /**
+     * A solved position: the hash it is looked up by and the best score per goal.
+     */
+    private static class Solved {
+        final long hash;
+        final short[] best;
+
+        Solved(long hash, short[] best) {
+            this.hash = hash;
+            this.best = best;
+        }
+    }
+
+    public EndgameSolver(int maxDepth, int maxTurns) {
+        this.maxDepth = maxDepth;
+        this.maxTurns = maxTurns;
+        for (int i = 0; i < BlockyTree.COLOR_LIST.length; i++) {
+            goals[i] = new BlobGoal(BlockyTree.COLOR_LIST[i]);
+            goals[BlockyTree.COLOR_LIST.length + i] = new PerimeterGoal(BlockyTree.COLOR_LIST[i]);
+        }
+        boards = new BlockyTree[maxTurns + 1];
+        for (int k = 0; k <= maxTurns; k++) {
+            solved.add(new HashMap<>());
+            boards[k] = new BlockyTree(maxDepth);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq < 0) {
+                throw new IllegalArgumentException("Expected key=value, got " + arg);
+            }
+            options.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        int depth = Integer.parseInt(options.getOrDefault("depth", "2"));
+        int turns = Integer.parseInt(options.getOrDefault("turns", "2"));
+        int count = Integer.parseInt(options.getOrDefault("boards", "10"));
+        long seed = Long.parseLong(options.getOrDefault("seed", String.valueOf(System.nanoTime())));
+        Path out = Paths.get(options.getOrDefault("out", "endgame.bin"));
+
+        EndgameSolver solver = new EndgameSolver(depth, turns);
+        BlockyTree board = new BlockyTree(depth, new Random(seed));
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            board.rebuild();
+            solver.solve(board);
+        }
+        solver.write(out);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%d boards, %d records in %.2f s%n", count, solver.size(), seconds);
+    }
+
+    /**
+     * Solves a board and every position reachable from it in the remaining moves.
+     *
+     * @param blockyTree the board, which is left unchanged
+     * @return the best score per goal, in the order of EndgameTable.index, with all
+     * the moves left
+     */
+    public short[] solve(BlockyTree blockyTree) {
+        if (blockyTree.getMaxDepth() != maxDepth) {
+            throw new IllegalArgumentException("Solver is for maxDepth " + maxDepth);
+        }
+        return solve(blockyTree.canonicalKey(), maxTurns).best.clone();
+    }
+
+    private Solved solve(byte[] key, int turnsLeft) {
+        ByteBuffer wrapped = ByteBuffer.wrap(key);
+        Solved result = solved.get(turnsLeft).get(wrapped);
+        if (result != null) {
+            return result;
+        }
+
+        BlockyTree board = boards[turnsLeft];
+        BoardSymmetry.decode(key, board.getRoot());
+        long hash = BoardSymmetry.hash(board.getRoot(), 0); // The key is already canonical.
+        short[] best;
+        if (turnsLeft == 0) {
+            best = new short[goals.length];
+            MyColor[][] cells = board.flatten();
+            for (int i = 0; i < goals.length; i++) {
+                best[i] = (short) goals[i].score(cells);
+            }
+        } else {
+            // Both recursive calls below use boards[turnsLeft - 1], never this board.
+            best = solve(key, turnsLeft - 1).best.clone();
+            List<Block> parents = new ArrayList<>();
+            collectParents(board.getRoot(), parents);
+            for (Block parent : parents) {
+                for (Move move : MOVES) {
+                    apply(parent, move);
+                    byte[] next = board.canonicalKey();
+                    apply(parent, inverse(move));
+                    short[] reached = solve(next, turnsLeft - 1).best;
+                    for (int i = 0; i < best.length; i++) {
+                        best[i] = (short) Math.max(best[i], reached[i]);
+                    }
+                }
+            }
+        }
+
+        result = new Solved(hash, best);
+        solved.get(turnsLeft).put(wrapped, result);
+        return result;
+    }
+
+    private static void collectParents(Block ref, List<Block> parents) {
+        if (ref.hasChildren()) {
+            parents.add(ref);
+            for (Block child : ref.getChildren()) {
+                collectParents(child, parents);
+            }
+        }
+    }
+
+    private static void apply(Block ref, Move move) {
+        switch (move) {
+            case HORIZONTAL_SWAP:
+                ref.horizontalSwap();
+                break;
+            case VERTICAL_SWAP:
+                ref.verticalSwap();
+                break;
+            case ROTATE_CLOCKWISE:
+                ref.rotateClockwise();
+                break;
+            default:
+                ref.rotateCounterclockwise();
+                break;
+        }
+    }
+
+    private static Move inverse(Move move) {
+        switch (move) {
+            case ROTATE_CLOCKWISE:
+                return Move.ROTATE_COUNTERCLOCKWISE;
+            case ROTATE_COUNTERCLOCKWISE:
+                return Move.ROTATE_CLOCKWISE;
+            default:
+                return move;
+        }
+    }
+
+    /**
+     * Returns how many records the table will have.
+     *
+     * @return the number of solved positions, counting each number of moves left
+     */
+    public int size() {
+        int size = 0;
+        for (Map<ByteBuffer, Solved> map : solved) {
+            size += map.size();
+        }
+        return size;
+    }
+
+    /**
+     * Writes everything solved so far as an EndgameTable.
+     *
+     * @param file the file to write
+     */
+    public void write(Path file) throws IOException {
+        List<long[]> order = new ArrayList<>(); // {hash, turns left, index in that map}
+        List<List<Solved>> byTurns = new ArrayList<>();
+        for (int k = 0; k <= maxTurns; k++) {
+            List<Solved> list = new ArrayList<>(solved.get(k).values());
+            byTurns.add(list);
+            for (int i = 0; i < list.size(); i++) {
+                order.add(new long[]{list.get(i).hash, k, i});
+            }
+        }
+        order.sort((a, b) -> EndgameTable.compareRecords(a[0], (int) a[1], b[0], (int) b[1]));
+
+        ByteBuffer records = ByteBuffer.allocate(order.size() * EndgameTable.RECORD_BYTES);
+        for (long[] entry : order) {
+            records.putLong(entry[0]).putShort((short) entry[1]).putShort((short) 0);
+            for (short score : byTurns.get((int) entry[1]).get((int) entry[2]).best) {
+                records.putShort(score);
+            }
+        }
+        records.flip();
+        EndgameTable.write(file, maxDepth, maxTurns, records);
+    }
+}
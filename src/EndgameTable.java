@@ -0,0 +1,173 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A read-only table of the best score each goal can reach from a position within a
+ * number of turns, solved offline by EndgameSolver and looked up by binary search in
+ * a memory-mapped file.
+ * <p>
+ * The file is a header followed by fixed-size records sorted by key:
+ * <pre>
+ *   header: int MAGIC, int VERSION, int maxDepth, int maxTurns, long record count
+ *   record: long symmetry hash, short turns left, short unused,
+ *           short best score per goal and color, in the order of index
+ * </pre>
+ * Positions are keyed by BlockyTree.symmetryHash, so all 8 rotations and reflections
+ * of a board share a record. The hash is 64 bits and not checked against the board,
+ * so a lookup can in principle hit the wrong position; at the table sizes the solver
+ * can produce, the chance is negligible.
+ */
+public class EndgameTable {
+    public static final int MAGIC = 0x424c4b45; // "BLKE"
+    public static final int VERSION = 2; // 2: keys merge uniform quadrants.
+    public static final int HEADER_BYTES = 24;
+    public static final int SCORES = 2 * BlockyTree.COLOR_LIST.length;
+    public static final int RECORD_BYTES = 12 + 2 * SCORES;
+
+    private final MappedByteBuffer buffer;
+    private final int maxDepth;
+    private final int maxTurns;
+    private final long size;
+
+    private EndgameTable(MappedByteBuffer buffer) {
+        this.buffer = buffer;
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IllegalArgumentException("Not an endgame table");
+        }
+        this.maxDepth = buffer.getInt(8);
+        this.maxTurns = buffer.getInt(12);
+        this.size = buffer.getLong(16);
+    }
+
+    /**
+     * Maps a table file into memory.
+     *
+     * @param file the file written by write
+     * @return the table
+     */
+    public static EndgameTable open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return new EndgameTable(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * Writes a table file.
+     *
+     * @param file     the file to write
+     * @param maxDepth the maxDepth of the solved boards
+     * @param maxTurns the most turns left any record has
+     * @param records  the records, RECORD_BYTES each, already sorted by compareRecords
+     */
+    public static void write(Path file, int maxDepth, int maxTurns, ByteBuffer records) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        header.putInt(MAGIC).putInt(VERSION).putInt(maxDepth).putInt(maxTurns)
+                .putLong(records.remaining() / RECORD_BYTES).flip();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+            while (records.hasRemaining()) {
+                channel.write(records);
+            }
+        }
+    }
+
+    /**
+     * Returns where a goal's score is kept within a record.
+     *
+     * @param goal a BlobGoal or PerimeterGoal
+     * @return the index, 0 to SCORES - 1
+     */
+    public static int index(Goal goal) {
+        int color = -1;
+        for (int i = 0; i < BlockyTree.COLOR_LIST.length; i++) {
+            if (BlockyTree.COLOR_LIST[i] == goal.getColor()) {
+                color = i;
+            }
+        }
+        if (color < 0 || !(goal instanceof BlobGoal || goal instanceof PerimeterGoal)) {
+            throw new IllegalArgumentException("No table entries for " + goal.description());
+        }
+        return (goal instanceof BlobGoal ? 0 : BlockyTree.COLOR_LIST.length) + color;
+    }
+
+    /**
+     * Orders records by hash, then by turns left.
+     */
+    static int compareRecords(long hashA, int turnsA, long hashB, int turnsB) {
+        int byHash = Long.compare(hashA, hashB);
+        return byHash != 0 ? byHash : Integer.compare(turnsA, turnsB);
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    public int getMaxTurns() {
+        return maxTurns;
+    }
+
+    /**
+     * Returns how many records the table holds.
+     *
+     * @return the number of records
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Looks up the best score a goal can reach from the board within some turns.
+     *
+     * @param blockyTree the board, with the same maxDepth as the table
+     * @param goal       a BlobGoal or PerimeterGoal
+     * @param turnsLeft  how many moves may still be made
+     * @return the best score, or -1 if the board was not solved for that many turns,
+     * including when turnsLeft is more than getMaxTurns()
+     */
+    public int lookup(BlockyTree blockyTree, Goal goal, int turnsLeft) {
+        if (blockyTree.getMaxDepth() != maxDepth) {
+            throw new IllegalArgumentException("Table is for maxDepth " + maxDepth);
+        }
+        int column = index(goal);
+        if (turnsLeft > maxTurns) {
+            // The best score within maxTurns moves may be beaten with more moves.
+            return -1;
+        }
+        long record = find(blockyTree.symmetryHash(), turnsLeft);
+        return record < 0 ? -1 : buffer.getShort(offset(record) + 12 + 2 * column);
+    }
+
+    /**
+     * Binary searches for a record.
+     *
+     * @return its index, or -1 if there is none
+     */
+    private long find(long hash, int turnsLeft) {
+        long low = 0;
+        long high = size - 1;
+        while (low <= high) {
+            long mid = (low + high) >>> 1;
+            int offset = offset(mid);
+            int cmp = compareRecords(buffer.getLong(offset), buffer.getShort(offset + 8), hash, turnsLeft);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    private static int offset(long record) {
+        return Math.toIntExact(HEADER_BYTES + record * RECORD_BYTES);
+    }
+}
@@ -4,17 +4,54 @@ import java.awt.event.KeyEvent;
 import java.awt.event.KeyListener;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * The game UI.  It handles the flow of the game, cycling between the players.
+ * <p>
+ * The window appears straight away; the board is built and first scored in the
+ * background behind a progress bar, so the deeper the board, the longer only that
+ * part takes. Run with -Dblocky.dumpBoard=FILE to also write the starting board's
+ * cells to FILE, one row per line.
  */
 public class Game extends JFrame {
+    private JPanel mainPanel;
+    private JPanel loadingPanel; // Holds the progress bar until the board is ready.
+    private JProgressBar progress;
     private BlockyPanel blockyPanel;
     private BlockyTree blockyTree;
+    // A copy of the board that only the scoring thread touches; every move made on
+    // blockyTree is made on it too, in order, by the same thread that scores it.
+    // The players' goals are scored against it and attached to it, so scoring never
+    // runs on the Event Dispatch Thread. The journal of blockyTree still works there:
+    // it encodes a snapshot of the whole board now and then as moves are made, and
+    // undo and redo restore one and replay from it, which is as much work as
+    // repainting the board.
+    private BlockyTree scoringTree;
+    private final ExecutorService scorer = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "Blocky scoring");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicInteger statusRequest = new AtomicInteger(); // Bumped by every scoring request.
     private Player[] players;
     private JLabel playerLabel;
     private JLabel status;
     private int turnsRemaining;
+    private final int numTurns;
+    private int[] smashedAt; // The turn each player smashed on, -1 if they have not.
+    private String lastStatus = ""; // The scores from the most recent finished scoring.
+    private String statusSuffix = "<br/>"; // Shown below the scores, e.g. "Invalid move".
+    private boolean announceWinner; // Set when the last turn is played.
 
     private int currentPlayer;
 
@@ -27,38 +64,130 @@ public class Game extends JFrame {
      */
     public Game(int numPlayers, int depth, int numTurns) {
         turnsRemaining = numTurns;
+        this.numTurns = numTurns;
 
         setTitle("Blocky Game");
         setSize(600, 600);
         setDefaultCloseOperation(EXIT_ON_CLOSE);
 
-        blockyTree = new BlockyTree(depth);
-        blockyTree.buildRandomTree();
+        currentPlayer = 0;
+        smashedAt = new int[numPlayers];
+        Arrays.fill(smashedAt, -1);
 
-        MyColor[][] F = blockyTree.flatten();
+        add(buildPanel());
 
-        for (int i = 0; i < F.length; i++) {
-            for (int j = 0; j < F[i].length; j++) {
-                System.out.println(F[i][j]);
-            }
+        setVisible(true);
+
+        new SetupWorker(numPlayers, depth).execute();
+    }
+
+    /**
+     * Builds the board and the players, and scores the starting position, off the
+     * Event Dispatch Thread; then swaps the progress bar for the board.
+     */
+    private class SetupWorker extends SwingWorker<int[], String> {
+        private final int numPlayers;
+        private final int depth;
+        private BlockyTree newTree;
+        private BlockyTree newScoringTree;
+        private Player[] newPlayers;
+
+        SetupWorker(int numPlayers, int depth) {
+            this.numPlayers = numPlayers;
+            this.depth = depth;
         }
 
-        players = new Player[numPlayers];
-        for (int i = 0; i < players.length; i++) {
-            Goal g;
+        @Override
+        protected int[] doInBackground() throws IOException {
+            newTree = new BlockyTree(depth);
+            newTree.buildRandomTree();
 
-            if (Math.random() < .5) {
-                g = new BlobGoal(BlockyTree.COLOR_LIST[(int) (Math.random() * 4)]);
-            } else {
-                g = new PerimeterGoal(BlockyTree.COLOR_LIST[(int) (Math.random() * 4)]);
+            String dumpFile = System.getProperty("blocky.dumpBoard");
+            if (dumpFile != null) {
+                publish("Writing board...");
+                dumpBoard(newTree.flatten(), dumpFile);
             }
-            players[i] = new Player(i, g, blockyTree);
+
+            publish("Scoring...");
+            // Goals follow the scoring copy, so their updates run on the scoring
+            // thread rather than inside moves on the Event Dispatch Thread.
+            newScoringTree = newTree.copy();
+            newPlayers = new Player[numPlayers];
+            int[] scores = new int[numPlayers];
+            for (int i = 0; i < newPlayers.length; i++) {
+                Goal g;
+
+                if (Math.random() < .5) {
+                    g = new BlobGoal(BlockyTree.COLOR_LIST[(int) (Math.random() * 4)]);
+                } else {
+                    g = new PerimeterGoal(BlockyTree.COLOR_LIST[(int) (Math.random() * 4)]);
+                }
+                if (g instanceof IncrementalGoal) {
+                    ((IncrementalGoal) g).attach(newScoringTree);
+                }
+                newPlayers[i] = new Player(i, g, newScoringTree);
+                scores[i] = newPlayers[i].getScore();
+            }
+            return scores;
         }
-        currentPlayer = 0;
 
-        add(buildPanel());
+        @Override
+        protected void process(List<String> stages) {
+            progress.setString(stages.get(stages.size() - 1));
+        }
 
-        setVisible(true);
+        @Override
+        protected void done() {
+            int[] scores;
+            try {
+                scores = get();
+            } catch (InterruptedException | ExecutionException e) {
+                progress.setIndeterminate(false);
+                progress.setString("Failed");
+                status.setText("<html><span style=\"color: red\">Could not set up the game: " + e.getCause() + "</span></html>");
+                return;
+            }
+
+            blockyTree = newTree;
+            scoringTree = newScoringTree;
+            players = newPlayers;
+            // Both journals start at the same board, so their turns always match.
+            // Snapshots are spaced by as many log bytes as they take, so encoding
+            // them costs the Event Dispatch Thread a constant amount per move on
+            // average, though the move that takes one pays for the whole board.
+            blockyTree.startJournal();
+            scorer.execute(scoringTree::startJournal);
+
+            blockyPanel = new BlockyPanel(blockyTree);
+            mainPanel.remove(loadingPanel);
+            mainPanel.add(blockyPanel, BorderLayout.CENTER);
+            mainPanel.revalidate();
+            mainPanel.repaint();
+            blockyPanel.requestFocusInWindow();
+
+            lastStatus = buildStatus(scores);
+            showStatus();
+        }
+    }
+
+    /**
+     * Writes a board's cells to a file, one row per line.
+     *
+     * @param cells the flattened board
+     * @param file  the file to write
+     */
+    private static void dumpBoard(MyColor[][] cells, String file) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(Paths.get(file))) {
+            for (MyColor[] row : cells) {
+                for (int j = 0; j < row.length; j++) {
+                    if (j > 0) {
+                        writer.write(' ');
+                    }
+                    writer.write(row[j].toString());
+                }
+                writer.newLine();
+            }
+        }
     }
 
     /**
@@ -69,10 +198,16 @@ public class Game extends JFrame {
     private JPanel buildPanel() {
         JPanel panel = new JPanel();
         panel.setLayout(new BorderLayout());
+        mainPanel = panel;
 
-        // Build the main panel.
-        blockyPanel = new BlockyPanel(blockyTree);
-        panel.add(blockyPanel, BorderLayout.CENTER);
+        // The board takes this spot once SetupWorker has built it.
+        progress = new JProgressBar();
+        progress.setIndeterminate(true);
+        progress.setStringPainted(true);
+        progress.setString("Building board...");
+        loadingPanel = new JPanel(new GridBagLayout());
+        loadingPanel.add(progress);
+        panel.add(loadingPanel, BorderLayout.CENTER);
 
         // This is the top label telling whose turn.
         playerLabel = new JLabel("<html><h1 style=\"color:blue\">Turns left: " +
@@ -84,13 +219,12 @@ public class Game extends JFrame {
         instructionsPanel.add(new JLabel("<html>Click to select a block<br/>" +
                 "S: smash<br/>" +
                 "H/V: horizontal/vertical swap<br/>" +
-                "Left/Right: CCW/CW rotation</html>"));
+                "Left/Right: CCW/CW rotation<br/>" +
+                "U/R: undo/redo</html>"));
         panel.add(instructionsPanel, BorderLayout.EAST);
 
         // This label contains the score and will contain status in the case of bad moves.
-        status = new JLabel();
-        String statusString = buildStatus();
-        status.setText("<html>" + statusString + "<br/></html>");
+        status = new JLabel("<html>Setting up...</html>");
         add(status, BorderLayout.SOUTH);
 
         return panel;
@@ -99,17 +233,132 @@ public class Game extends JFrame {
     /**
      * Iterates through the players and builds a string of each of their status's.
      *
+     * @param scores each player's score
      * @return a string representing all players goals and scores
      */
-    private String buildStatus() {
+    private String buildStatus(int[] scores) {
         String statusString = "";
         for (int i = 0; i < players.length; i++) {
-            statusString += "Player " + (i + 1) + " " + players[i] + "<br/>";
+            statusString += "Player " + (i + 1) + " " + players[i].statusString(scores[i]) + "<br/>";
         }
         statusString += "<br/>&nbsp;";
         return statusString;
     }
 
+    /**
+     * Brings whose turn it is, the turns left and the players' smashes in line with
+     * the board after an undo or redo, which put it back to an earlier or later turn.
+     *
+     * @param forward whether the board moved forward (a redo)
+     */
+    private void syncTurn(boolean forward) {
+        int moves = blockyTree.getJournalPosition();
+        currentPlayer = moves % players.length;
+        turnsRemaining = numTurns - moves / players.length;
+        for (int i = 0; i < players.length; i++) {
+            if (smashedAt[i] >= 0 && smashedAt[i] < moves) {
+                players[i].usedSmash();
+            } else {
+                players[i].restoreSmash();
+            }
+        }
+        if (forward && turnsRemaining == 0 && currentPlayer == 0) {
+            announceWinner = true;
+        }
+
+        playerLabel.setText("<html><h1 style=\"color:blue\">Turns left: " +
+                turnsRemaining + ", Player " + (currentPlayer + 1) + "'s turn");
+        statusSuffix = "<br/>";
+        showStatus();
+        requestStatus();
+    }
+
+    /**
+     * Shows the most recent scores followed by the current status suffix.
+     */
+    private void showStatus() {
+        status.setText("<html>" + lastStatus + statusSuffix + "</html>");
+    }
+
+    /**
+     * Makes a move that just succeeded on the board on the scoring copy too. Only the
+     * path and, for a smash, the new colors are handed over, so the Event Dispatch
+     * Thread never copies the tree.
+     *
+     * @param move the move
+     */
+    private void mirrorMove(Move move) {
+        int[] path = blockyTree.getSelectedPath();
+        MyColor[] smashColors = new MyColor[4];
+        if (move == Move.SMASH) {
+            for (int i = 0; i < 4; i++) {
+                smashColors[i] = blockyTree.getSelected().getChildren()[i].getColor();
+            }
+        }
+        scorer.execute(() -> scoringTree.applyRecorded(path, path.length, move, smashColors));
+    }
+
+    /**
+     * Puts the scoring copy at the same turn as the board after an undo or redo.
+     */
+    private void mirrorSeek() {
+        int position = blockyTree.getJournalPosition();
+        scorer.execute(() -> scoringTree.seek(position));
+    }
+
+    /**
+     * Scores every player on the scoring thread, so that large boards do not freeze
+     * the UI, then shows the scores. Scoring for an earlier request gives up between
+     * players once a newer one is made, since its result would be stale anyway.
+     * Incremental goals were already updated on that thread when the move was
+     * mirrored, so reading them is cheap.
+     */
+    private void requestStatus() {
+        int request = statusRequest.incrementAndGet();
+        scorer.execute(() -> {
+            try {
+                int[] scores = new int[players.length];
+                for (int i = 0; i < scores.length; i++) {
+                    if (statusRequest.get() != request) {
+                        return;
+                    }
+                    scores[i] = players[i].getScore();
+                }
+                SwingUtilities.invokeLater(() -> showScores(request, scores));
+            } catch (RuntimeException e) {
+                SwingUtilities.invokeLater(() -> status.setText(
+                        "<html><span style=\"color: red\">Scoring failed: " + e + "</span></html>"));
+            }
+        });
+    }
+
+    /**
+     * Shows finished scores (and announces the winner after the last turn), unless
+     * a newer request has replaced them. Runs on the Event Dispatch Thread.
+     *
+     * @param request the request the scores are for
+     * @param scores  each player's score
+     */
+    private void showScores(int request, int[] scores) {
+        if (request != statusRequest.get()) {
+            return;
+        }
+        lastStatus = buildStatus(scores);
+        showStatus();
+
+        if (announceWinner) {
+            announceWinner = false;
+            int max = 0;
+            for (int i = 1; i < players.length; i++) {
+                if (scores[i] > scores[max]) {
+                    max = i;
+                }
+            }
+
+            JOptionPane.showMessageDialog(null, "Player " + (max + 1) + " wins!");
+        }
+    }
+
     /**
      * A panel that handles clicks and keyevents regarding the main gameboard.
      */
@@ -137,7 +386,17 @@ public class Game extends JFrame {
          */
         public void paintComponent(Graphics g) {
             super.paintComponent(g);
-            blockyTree.draw(g);
+            blockyTree.draw(g, viewport());
+        }
+
+        /**
+         * Fits the board to the panel's current size, leaving a pixel for the
+         * lines along its right and bottom edges.
+         *
+         * @return the largest square viewport in the panel's top-left corner
+         */
+        private Viewport viewport() {
+            return new Viewport(0, 0, Math.max(1, Math.min(getWidth(), getHeight()) - 1));
         }
 
         /**
@@ -150,7 +409,7 @@ public class Game extends JFrame {
              * @param evt the event from pressing the mouse button
              */
             public void mousePressed(MouseEvent evt) {
-                blockyTree.processClick(evt.getX(), evt.getY());
+                blockyTree.processClick(evt.getX(), evt.getY(), viewport());
 
                 repaint();
             }
@@ -166,58 +425,73 @@ public class Game extends JFrame {
              * @param e the event from pressing the key
              */
            public void keyPressed(KeyEvent e) {
-               boolean success;
-               switch (e.getKeyChar()) {
-                   case 'h':
-                       case 'H':
-                           success = blockyTree.horizontalSwap();
-                           break;
-                           case 'v':
-                               case 'V':
-                                   success = blockyTree.verticalSwap();
-                                   break;
-                                   case 's':
-                                       case 'S':
-                                           success = blockyTree.smash(players[currentPlayer]);
-                                           break;
-                                           default:
-                                               switch (e.getKeyCode()) {
-                                                   case KeyEvent.VK_LEFT:
-                                                       success = blockyTree.rotateCounterclockwise();
-                                                       break;
-                                                       case KeyEvent.VK_RIGHT:
-                                                           success = blockyTree.rotateClockwise();
-                                                           break;
-                                                           default:
-                                                               success = false;
-                                                               break;
-                                               }
-                                               break;
+               char key = Character.toUpperCase(e.getKeyChar());
+               if (key == 'U' || key == 'R') {
+                   if (key == 'U' ? blockyTree.undo() : blockyTree.redo()) {
+                       mirrorSeek();
+                       syncTurn(key == 'R');
+                   } else {
+                       statusSuffix = "<span style=\"color: red\">Nothing to " + (key == 'U' ? "undo" : "redo") + "</span>";
+                       showStatus();
+                   }
+                   repaint();
+                   return;
                }
+
+               Move move;
+               switch (key) {
+                   case 'H':
+                       move = Move.HORIZONTAL_SWAP;
+                       break;
+                   case 'V':
+                       move = Move.VERTICAL_SWAP;
+                       break;
+                   case 'S':
+                       move = Move.SMASH;
+                       break;
+                   default:
+                       if (e.getKeyCode() == KeyEvent.VK_LEFT) {
+                           move = Move.ROTATE_COUNTERCLOCKWISE;
+                       } else if (e.getKeyCode() == KeyEvent.VK_RIGHT) {
+                           move = Move.ROTATE_CLOCKWISE;
+                       } else {
+                           move = null;
+                       }
+                       break;
+               }
+               int turn = blockyTree.getJournalPosition();
+               boolean success = move != null && blockyTree.move(move, players[currentPlayer]);
                if (success) {
+                   mirrorMove(move);
+                   // Smashes on turns that were undone and are now overwritten no longer count.
+                   for (int i = 0; i < players.length; i++) {
+                       if (smashedAt[i] >= turn) {
+                           smashedAt[i] = -1;
+                       }
+                   }
+                   if (key == 'S') {
+                       smashedAt[currentPlayer] = turn;
+                   }
+
                    currentPlayer = (currentPlayer + 1) % players.length;
                    playerLabel.setText("<html><h1 style=\"color:blue\">Turns left: " +
                            turnsRemaining + ", Player " + (currentPlayer + 1) + "'s turn");
 
-                   String statusString = buildStatus();
-                   status.setText("<html>" + statusString + "<br/></html>");
                    if (currentPlayer == 0) {
                        turnsRemaining--;
                    }
 
                    if (turnsRemaining == 0) {
-                       int max = 0;
-                       for (int i = 1; i < players.length; i++) {
-                           if (players[i].getScore() > players[max].getScore()) {
-                               max = i;
-                           }
-                       }
-
-                       JOptionPane.showMessageDialog(null, "Player " + (max + 1) + " wins!");
+                       announceWinner = true;
                    }
+
+                   statusSuffix = "<br/>";
+                   showStatus();
+                   requestStatus();
                } else {  // Show an error message if move was unsuccessful.
-                   String statusString = buildStatus();
-                   status.setText("<html>" + statusString + "<span style=\"color: red\">Invalid move</span></html>");
+                   // The board did not change, so the last scores are still current.
+                   statusSuffix = "<span style=\"color: red\">Invalid move</span>";
+                   showStatus();
                }
 
                repaint();
@@ -17,7 +17,21 @@ public abstract class Goal {
      * Return the current score for this goal on the given board.
      * The score is always greater than or equal to 0.
      */
-    public abstract int score(BlockyTree blockyTree);
+    public int score(BlockyTree blockyTree) {
+        Instrumentation.ScoreEvent event = Instrumentation.beginScore(this, false);
+        int score = score(blockyTree.flatten());
+        Instrumentation.end(event, blockyTree);
+        return score;
+    }
+
+    /**
+     * Return the score for this goal on a flattened board.
+     * The score is always greater than or equal to 0.
+     *
+     * @param cells the board, as returned by BlockyTree.flatten()
+     * @return the score
+     */
+    public abstract int score(MyColor[][] cells);
 
     /**
      * Return a description of this goal.
@@ -0,0 +1,114 @@
+/**
+ * A goal that keeps its score up to date from the moves applied to one BlockyTree,
+ * instead of recomputing it from the whole board every time it is asked.
+ * <p>
+ * Once attached, the goal is told about every move and updates its state in time
+ * proportional to the changed square. In verify mode every update is cross-checked
+ * against a full recompute, which is slow but catches any drift.
+ */
+public abstract class IncrementalGoal extends Goal implements BoardListener {
+    private BlockyTree blockyTree;
+    private boolean verify = Boolean.getBoolean("blocky.verifyGoals");
+
+    /**
+     * Initialize this goal to have the given target colour.
+     *
+     * @param targetColor the player's color to be maximized
+     */
+    public IncrementalGoal(MyColor targetColor) {
+        super(targetColor);
+    }
+
+    /**
+     * Starts tracking the given tree, detaching from any previous one.
+     *
+     * @param blockyTree the tree whose moves should update the score
+     */
+    public void attach(BlockyTree blockyTree) {
+        detach();
+        this.blockyTree = blockyTree;
+        reset(blockyTree.flatten());
+        blockyTree.addBoardListener(this);
+    }
+
+    /**
+     * Stops tracking the current tree, if any.
+     */
+    public void detach() {
+        if (blockyTree != null) {
+            blockyTree.removeBoardListener(this);
+            blockyTree = null;
+        }
+    }
+
+    /**
+     * Checks whether this goal is tracking the given tree.
+     *
+     * @param blockyTree the tree
+     * @return true if currentScore() is the score on that tree
+     */
+    public boolean isAttachedTo(BlockyTree blockyTree) {
+        return blockyTree != null && this.blockyTree == blockyTree;
+    }
+
+    /**
+     * Turns cross-checking of every update against a full recompute on or off.
+     * Defaults to the blocky.verifyGoals system property.
+     *
+     * @param verify whether to verify
+     */
+    public void setVerify(boolean verify) {
+        this.verify = verify;
+    }
+
+    @Override
+    public final void boardChanged(BoardChange change) {
+        if (hasOwnState()) {
+            Instrumentation.ScoreEvent event = Instrumentation.beginScore(this, true);
+            update(change);
+            Instrumentation.end(event, blockyTree);
+        } else {
+            update(change);
+        }
+        if (verify) {
+            int expected = score(blockyTree);
+            int actual = currentScore();
+            if (expected != actual) {
+                throw new IllegalStateException(description() + " (" + getColor() + ") scored " + actual +
+                        " incrementally but " + expected + " from scratch");
+            }
+        }
+    }
+
+    /**
+     * Tells whether update does the work of keeping this goal's score current, and
+     * so is worth timing. Goals that read state kept up to date by someone else
+     * return false, and that someone times the work instead.
+     *
+     * @return true unless the goal's update does nothing
+     */
+    protected boolean hasOwnState() {
+        return true;
+    }
+
+    /**
+     * Returns the score on the attached tree, as of the last move.
+     *
+     * @return the score
+     */
+    public abstract int currentScore();
+
+    /**
+     * Rebuilds the incremental state from the whole board.
+     *
+     * @param cells the flattened board
+     */
+    protected abstract void reset(MyColor[][] cells);
+
+    /**
+     * Updates the incremental state for one move.
+     *
+     * @param change the changed square
+     */
+    protected abstract void update(BoardChange change);
+}
@@ -0,0 +1,276 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Timing for the expensive parts of the game: moves, flatten, scoring and repaint.
+ * <p>
+ * Each timed section is a JDK Flight Recorder event carrying the board's depth and
+ * node count, so a recording shows where the time goes. Start a recording with
+ * -XX:StartFlightRecording or jcmd. When no recording wants an event and the flag
+ * below is off, the begin methods return null without creating one, and end ignores
+ * it, so a timed section costs a check and nothing is allocated.
+ * <p>
+ * With -Dblocky.instrument=true every section is also recorded into an in-process
+ * LatencyHistogram, together with the bytes the thread allocated, and dump() prints
+ * them. The flag is a constant, so when it is off that code is compiled away.
+ */
+public final class Instrumentation {
+    public static final boolean ENABLED = Boolean.getBoolean("blocky.instrument");
+
+    private static final Map<String, LatencyHistogram> HISTOGRAMS = new ConcurrentHashMap<>();
+    private static final com.sun.management.ThreadMXBean THREADS = ENABLED ? allocationCounter() : null;
+
+    private static final EventType MOVE = EventType.getEventType(MoveEvent.class);
+    private static final EventType FLATTEN = EventType.getEventType(FlattenEvent.class);
+    private static final EventType SCORE = EventType.getEventType(ScoreEvent.class);
+    private static final EventType REPAINT = EventType.getEventType(RepaintEvent.class);
+
+    static {
+        if (ENABLED && Boolean.getBoolean("blocky.instrument.dumpOnExit")) {
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> System.err.print(dump())));
+        }
+    }
+
+    private Instrumentation() {
+    }
+
+    /**
+     * Starts timing a move.
+     *
+     * @param move the move's name
+     * @return the event for end, or null if nothing is recording moves
+     */
+    public static MoveEvent beginMove(String move) {
+        return ENABLED || MOVE.isEnabled() ? begin(new MoveEvent(move)) : null;
+    }
+
+    /**
+     * Starts timing a flatten.
+     *
+     * @return the event for end, or null if nothing is recording flattens
+     */
+    public static FlattenEvent beginFlatten() {
+        return ENABLED || FLATTEN.isEnabled() ? begin(new FlattenEvent()) : null;
+    }
+
+    /**
+     * Starts timing a goal's scoring.
+     *
+     * @param goal        the goal being scored
+     * @param incremental whether it is an update from a move
+     * @return the event for end, or null if nothing is recording scores
+     */
+    public static ScoreEvent beginScore(Goal goal, boolean incremental) {
+        return ENABLED || SCORE.isEnabled() ? begin(new ScoreEvent(goal, incremental)) : null;
+    }
+
+    /**
+     * Starts timing scoring work that is not a single goal's, e.g. the BlobIndex
+     * update that every BlobGoal on a board reads from.
+     *
+     * @param goal        what is being scored
+     * @param incremental whether it is an update from a move
+     * @return the event for end, or null if nothing is recording scores
+     */
+    public static ScoreEvent beginScore(String goal, boolean incremental) {
+        return ENABLED || SCORE.isEnabled() ? begin(new ScoreEvent(goal, incremental)) : null;
+    }
+
+    /**
+     * Starts timing a repaint.
+     *
+     * @return the event for end, or null if nothing is recording repaints
+     */
+    public static RepaintEvent beginRepaint() {
+        return ENABLED || REPAINT.isEnabled() ? begin(new RepaintEvent()) : null;
+    }
+
+    private static <E extends BlockyEvent> E begin(E event) {
+        if (ENABLED) {
+            event.startBytes = allocatedBytes();
+            event.startNanos = System.nanoTime();
+        }
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Finishes timing a move and records whether it succeeded.
+     *
+     * @param event      the event returned by beginMove, possibly null
+     * @param succeeded  whether the move succeeded
+     * @param blockyTree the board the move was made on
+     */
+    public static void end(MoveEvent event, boolean succeeded, BlockyTree blockyTree) {
+        if (event != null) {
+            event.succeeded = succeeded;
+            end(event, blockyTree);
+        }
+    }
+
+    /**
+     * Finishes timing a section and records it.
+     *
+     * @param event      the event returned by a begin method, possibly null
+     * @param blockyTree the board the section worked on, or null if unknown
+     */
+    public static void end(BlockyEvent event, BlockyTree blockyTree) {
+        if (event == null) {
+            return;
+        }
+        event.end();
+        if (ENABLED) {
+            long nanos = System.nanoTime() - event.startNanos;
+            long bytes = allocatedBytes() - event.startBytes;
+            HISTOGRAMS.computeIfAbsent(event.histogramName(), name -> new LatencyHistogram()).record(nanos, bytes);
+        }
+        if (event.shouldCommit()) {
+            if (blockyTree != null) {
+                event.depth = blockyTree.depth();
+                event.nodeCount = blockyTree.nodeCount();
+            }
+            event.commit();
+        }
+    }
+
+    /**
+     * Returns the histogram for a section, e.g. "flatten", "move rotateClockwise"
+     * or "score Largest Blob".
+     *
+     * @param name the section's name
+     * @return the histogram, or null if nothing was recorded under that name
+     */
+    public static LatencyHistogram histogram(String name) {
+        return HISTOGRAMS.get(name);
+    }
+
+    /**
+     * Formats every histogram as a table, one section per line.
+     *
+     * @return the table
+     */
+    public static String dump() {
+        StringBuilder out = new StringBuilder();
+        out.append(String.format("%-32s %10s %10s %10s %10s %10s %10s %12s%n",
+                "section", "count", "mean us", "p50 us", "p90 us", "p99 us", "max us", "bytes/op"));
+        for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<>(HISTOGRAMS).entrySet()) {
+            LatencyHistogram h = entry.getValue();
+            out.append(String.format("%-32s %10d %10.1f %10.1f %10.1f %10.1f %10.1f %12.0f%n",
+                    entry.getKey(), h.getCount(), h.getMean() / 1e3,
+                    h.getPercentile(50) / 1e3, h.getPercentile(90) / 1e3, h.getPercentile(99) / 1e3,
+                    h.getMax() / 1e3, h.getBytesPerRecord()));
+        }
+        return out.toString();
+    }
+
+    /**
+     * Forgets everything recorded so far.
+     */
+    public static void reset() {
+        HISTOGRAMS.clear();
+    }
+
+    private static long allocatedBytes() {
+        return THREADS == null ? 0 : THREADS.getCurrentThreadAllocatedBytes();
+    }
+
+    private static com.sun.management.ThreadMXBean allocationCounter() {
+        if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+            if (threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled()) {
+                return threads;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The fields shared by every event: the board it ran on.
+     */
+    @Category("Blocky")
+    public abstract static class BlockyEvent extends Event {
+        @Label("Board Depth")
+        @Description("Number of levels below the root")
+        int depth;
+
+        @Label("Node Count")
+        @Description("Number of Blocks in the tree")
+        int nodeCount;
+
+        transient long startNanos;
+        transient long startBytes;
+
+        abstract String histogramName();
+    }
+
+    @Name("blocky.Move")
+    @Label("Move")
+    public static class MoveEvent extends BlockyEvent {
+        @Label("Move")
+        String move;
+
+        @Label("Succeeded")
+        boolean succeeded;
+
+        MoveEvent(String move) {
+            this.move = move;
+        }
+
+        @Override
+        String histogramName() {
+            return "move " + move;
+        }
+    }
+
+    @Name("blocky.Flatten")
+    @Label("Flatten")
+    public static class FlattenEvent extends BlockyEvent {
+        @Override
+        String histogramName() {
+            return "flatten";
+        }
+    }
+
+    @Name("blocky.Score")
+    @Label("Score")
+    public static class ScoreEvent extends BlockyEvent {
+        @Label("Goal")
+        String goal;
+
+        @Label("Incremental")
+        @Description("Whether the score was updated from a move rather than recomputed")
+        boolean incremental;
+
+        ScoreEvent(Goal goal, boolean incremental) {
+            this(goal.description(), incremental);
+        }
+
+        ScoreEvent(String goal, boolean incremental) {
+            this.goal = goal;
+            this.incremental = incremental;
+        }
+
+        @Override
+        String histogramName() {
+            return (incremental ? "score update " : "score ") + goal;
+        }
+    }
+
+    @Name("blocky.Repaint")
+    @Label("Repaint")
+    public static class RepaintEvent extends BlockyEvent {
+        @Override
+        String histogramName() {
+            return "repaint";
+        }
+    }
+}
@@ -0,0 +1,109 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of latencies in nanoseconds, with the bytes allocated
+ * alongside them.
+ * <p>
+ * Like HdrHistogram, values are bucketed by their highest set bit and the next
+ * three bits, so every bucket is within 12.5% of the values in it and the whole
+ * histogram is a fixed array of counters no matter how many values are recorded.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+    private final LongAdder totalNanos = new LongAdder();
+    private final LongAdder totalBytes = new LongAdder();
+
+    /**
+     * Records one measurement.
+     *
+     * @param nanos the latency
+     * @param bytes the bytes allocated, or 0 if unknown
+     */
+    public void record(long nanos, long bytes) {
+        nanos = Math.max(0, nanos);
+        counts.incrementAndGet(bucket(nanos));
+        count.incrementAndGet();
+        max.accumulateAndGet(nanos, Math::max);
+        totalNanos.add(nanos);
+        totalBytes.add(Math.max(0, bytes));
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long n = count.get();
+        return n == 0 ? 0 : (double) totalNanos.sum() / n;
+    }
+
+    public double getBytesPerRecord() {
+        long n = count.get();
+        return n == 0 ? 0 : (double) totalBytes.sum() / n;
+    }
+
+    /**
+     * Returns an estimate of the given percentile.
+     *
+     * @param percentile between 0 and 100
+     * @return the midpoint of the bucket holding that percentile, in nanoseconds
+     */
+    public long getPercentile(double percentile) {
+        long n = count.get();
+        if (n == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(max.get(), lowerBound(i) + (lowerBound(i + 1) - lowerBound(i)) / 2);
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Forgets every recorded value.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        count.set(0);
+        max.set(0);
+        totalNanos.reset();
+        totalBytes.reset();
+    }
+
+    private static int bucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    private static long lowerBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        long sub = bucket % SUB_BUCKETS;
+        return (SUB_BUCKETS + sub) << (exponent - SUB_BITS);
+    }
+}
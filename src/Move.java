@@ -0,0 +1,25 @@
+/**
+ * The moves a player can make on the selected Block.
+ */
+public enum Move {
+    HORIZONTAL_SWAP("horizontalSwap"),
+    VERTICAL_SWAP("verticalSwap"),
+    ROTATE_CLOCKWISE("rotateClockwise"),
+    ROTATE_COUNTERCLOCKWISE("rotateCounterclockwise"),
+    SMASH("smash");
+
+    private final String methodName;
+
+    Move(String methodName) {
+        this.methodName = methodName;
+    }
+
+    /**
+     * Returns the name of the BlockyTree method that makes this move.
+     *
+     * @return the method name
+     */
+    public String methodName() {
+        return methodName;
+    }
+}
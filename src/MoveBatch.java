@@ -0,0 +1,98 @@
+import java.util.Arrays;
+
+/**
+ * A queue of moves to make on a BlockyTree in one go, for scripts, replays and bots
+ * that make many moves before anyone looks at the board.
+ * <p>
+ * BlockyTree.apply(MoveBatch, Player) makes the moves in order, but runs of swaps and
+ * rotations on the same Block are first combined into the one symmetry they add up
+ * to (see BoardSymmetry), so four rotations or two identical swaps cost nothing. The
+ * symmetries are only recorded on the Blocks they were made on, and the tree is put
+ * in order in one pass once the batch is done, so a long replay costs about the
+ * moves' path lengths plus one walk of the Blocks they reached, rather than a subtree
+ * walk per move. That pays off on large boards with many swaps and rotations; smashes
+ * keep a board small, and then there is little to save. It also only holds as long
+ * as nobody listens to the board: a listener has to see each run's result, so every
+ * run is carried out as it is made.
+ */
+public class MoveBatch {
+    private Move[] moves = new Move[16];
+    private int[] pathStart = new int[16];
+    private int[] pathLength = new int[16];
+    private int[] paths = new int[64];
+    private int size;
+    private int pathsUsed;
+
+    /**
+     * Queues a move.
+     *
+     * @param path   the child indices leading to the Block to move
+     * @param depth  how many entries of path are used
+     * @param move   the move
+     * @return this batch
+     */
+    public MoveBatch add(int[] path, int depth, Move move) {
+        if (size == moves.length) {
+            moves = Arrays.copyOf(moves, size * 2);
+            pathStart = Arrays.copyOf(pathStart, size * 2);
+            pathLength = Arrays.copyOf(pathLength, size * 2);
+        }
+        if (pathsUsed + depth > paths.length) {
+            paths = Arrays.copyOf(paths, Math.max(paths.length * 2, pathsUsed + depth));
+        }
+        moves[size] = move;
+        pathStart[size] = pathsUsed;
+        pathLength[size] = depth;
+        System.arraycopy(path, 0, paths, pathsUsed, depth);
+        pathsUsed += depth;
+        size++;
+        return this;
+    }
+
+    /**
+     * Returns how many moves are queued.
+     *
+     * @return the number of moves
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Empties the queue.
+     */
+    public void clear() {
+        size = 0;
+        pathsUsed = 0;
+    }
+
+    public Move getMove(int i) {
+        return moves[i];
+    }
+
+    public int getPathLength(int i) {
+        return pathLength[i];
+    }
+
+    /**
+     * Copies the path of a queued move.
+     *
+     * @param i    which move
+     * @param path where to copy the path to
+     */
+    public void getPath(int i, int[] path) {
+        System.arraycopy(paths, pathStart[i], path, 0, pathLength[i]);
+    }
+
+    /**
+     * Checks whether two queued moves are made on the same Block.
+     *
+     * @param i one move
+     * @param j another move
+     * @return true if their paths are the same
+     */
+    public boolean sameBlock(int i, int j) {
+        return Arrays.equals(paths, pathStart[i], pathStart[i] + pathLength[i],
+                paths, pathStart[j], pathStart[j] + pathLength[j]);
+    }
+}
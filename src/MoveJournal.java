@@ -0,0 +1,286 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A compact record of the moves made on a BlockyTree, with periodic snapshots, so a
+ * game can be undone, redone or replayed to any turn.
+ * <p>
+ * Each move takes one byte for its Move and path length, one byte per four levels of
+ * path to the moved Block, and for a smash one more byte holding the colors it rolled,
+ * which makes a typical move two or three bytes. (Paths of 31 levels or more carry
+ * the rest of their length in a varint after the first byte.)
+ * <p>
+ * Now and then the board itself is stored as a snapshot, half a byte per Block, so
+ * reaching any turn means restoring the nearest snapshot before it and replaying the
+ * moves since. A snapshot is taken once at least MIN_SNAPSHOT_INTERVAL moves and as
+ * many log bytes as the previous snapshot took have gone by. Small boards thus get one
+ * every MIN_SNAPSHOT_INTERVAL moves, while on large boards the snapshots grow further
+ * apart as the board grows, and never take much more room than the moves do.
+ * <p>
+ * The journal only stores and decodes; BlockyTree does the restoring and replaying.
+ */
+public class MoveJournal {
+    public static final int MIN_SNAPSHOT_INTERVAL = 32;
+    // Path lengths from this on continue in a varint after the first byte.
+    private static final int LONG_PATH = 31;
+
+    private byte[] log = new byte[64];
+    private int logLength;
+    private int moveCount;
+    // snapshots.get(k) is the board after snapshotPositions[k] moves,
+    // and snapshotOffsets[k] is where the next move starts in the log.
+    private final List<byte[]> snapshots = new ArrayList<>();
+    private int[] snapshotPositions = new int[4];
+    private int[] snapshotOffsets = new int[4];
+
+    // The move most recently decoded by read().
+    private Move move;
+    private int pathLength;
+    private int[] path = new int[LONG_PATH];
+    private final MyColor[] colors = new MyColor[4];
+
+    /**
+     * Starts a new journal whose turn 0 is the given board.
+     *
+     * @param root the root of the board
+     */
+    public MoveJournal(Block root) {
+        snapshots.add(encode(root));
+        snapshotPositions[0] = 0;
+        snapshotOffsets[0] = 0;
+    }
+
+    /**
+     * Returns how many moves are recorded.
+     *
+     * @return the number of moves
+     */
+    public int size() {
+        return moveCount;
+    }
+
+    /**
+     * Returns how many bytes the moves and snapshots take up.
+     *
+     * @return the number of bytes used
+     */
+    public long bytesUsed() {
+        long bytes = logLength;
+        for (byte[] snapshot : snapshots) {
+            bytes += snapshot.length;
+        }
+        return bytes;
+    }
+
+    /**
+     * Appends a move, forgetting any recorded after turn position first (i.e. moves
+     * that were undone and are now replaced).
+     *
+     * @param position    the turn the move was made at
+     * @param offset      the log offset of that turn, from offsetOf or a previous read
+     * @param move        the move
+     * @param path        the child indices leading to the moved Block
+     * @param pathLength  how many entries of path are used
+     * @param smashed     the moved Block, whose children are recorded for a smash
+     * @param rootAfter   the root of the board after the move, for snapshots
+     * @return the log offset after the move
+     */
+    public int append(int position, int offset, Move move, int[] path, int pathLength, Block smashed, Block rootAfter) {
+        boolean snapshot = snapshotsAfter(position, offset);
+        moveCount = position;
+        logLength = offset;
+        int keep = snapshotIndex(position) + 1;
+        while (snapshots.size() > keep) {
+            snapshots.remove(snapshots.size() - 1);
+        }
+
+        ensureCapacity(7 + (pathLength + 3) / 4);
+        log[logLength++] = (byte) (move.ordinal() | (Math.min(pathLength, LONG_PATH) << 3));
+        for (int rest = pathLength - LONG_PATH; rest >= 0; rest >>>= 7) {
+            if (rest < 0x80) {
+                log[logLength++] = (byte) rest;
+                break;
+            }
+            log[logLength++] = (byte) ((rest & 0x7F) | 0x80);
+        }
+        for (int k = 0; k < pathLength; k += 4) {
+            int packed = 0;
+            for (int j = 0; j < 4 && k + j < pathLength; j++) {
+                packed |= path[k + j] << (2 * j);
+            }
+            log[logLength++] = (byte) packed;
+        }
+        if (move == Move.SMASH) {
+            int packed = 0;
+            for (int i = 0; i < 4; i++) {
+                packed |= colorIndex(smashed.getChildren()[i].getColor()) << (2 * i);
+            }
+            log[logLength++] = (byte) packed;
+        }
+
+        moveCount++;
+        if (snapshot) {
+            int k = snapshots.size();
+            snapshots.add(encode(rootAfter));
+            if (k == snapshotOffsets.length) {
+                snapshotPositions = Arrays.copyOf(snapshotPositions, k * 2);
+                snapshotOffsets = Arrays.copyOf(snapshotOffsets, k * 2);
+            }
+            snapshotPositions[k] = moveCount;
+            snapshotOffsets[k] = logLength;
+        }
+        return logLength;
+    }
+
+    /**
+     * Tells whether appending a move at the given turn will take a snapshot of the
+     * board after it.
+     *
+     * @param position the turn the move will be made at
+     * @param offset   the log offset of that turn
+     * @return true if append will store the board after the move
+     */
+    public boolean snapshotsAfter(int position, int offset) {
+        int k = snapshotIndex(position);
+        return position + 1 - snapshotPositions[k] >= MIN_SNAPSHOT_INTERVAL
+                && offset - snapshotOffsets[k] >= snapshots.get(k).length;
+    }
+
+    /**
+     * Returns the turn of the last snapshot at or before the given turn.
+     *
+     * @param position the turn, 0 to size()
+     * @return the snapshot's turn
+     */
+    public int snapshotBefore(int position) {
+        return snapshotPositions[snapshotIndex(position)];
+    }
+
+    /**
+     * Finds the last snapshot at or before the given turn.
+     */
+    private int snapshotIndex(int position) {
+        int low = 0;
+        int high = snapshots.size() - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (snapshotPositions[mid] <= position) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Restores the board as it was at a snapshot's turn.
+     *
+     * @param position the turn of a snapshot, as returned by snapshotBefore
+     * @param root     the root to rebuild the board in
+     * @return the log offset of the first move after the snapshot
+     */
+    public int restore(int position, Block root) {
+        int k = snapshotIndex(position);
+        byte[] snapshot = snapshots.get(k);
+        restoreKernel(root, snapshot, new int[1]);
+        return snapshotOffsets[k];
+    }
+
+    /**
+     * Decodes the move at the given log offset; see getMove, getPath,
+     * getPathLength and getSmashColors.
+     *
+     * @param offset the log offset of a move
+     * @return the log offset of the next move
+     */
+    public int read(int offset) {
+        int first = log[offset++] & 0xff;
+        move = Move.values()[first & 0x7];
+        pathLength = first >>> 3;
+        if (pathLength == LONG_PATH) {
+            for (int shift = 0; ; shift += 7) {
+                int b = log[offset++] & 0xff;
+                pathLength += (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    break;
+                }
+            }
+            if (pathLength > path.length) {
+                path = new int[pathLength];
+            }
+        }
+        for (int k = 0; k < pathLength; k += 4) {
+            int packed = log[offset++] & 0xff;
+            for (int j = 0; j < 4 && k + j < pathLength; j++) {
+                path[k + j] = (packed >>> (2 * j)) & 3;
+            }
+        }
+        if (move == Move.SMASH) {
+            int packed = log[offset++] & 0xff;
+            for (int i = 0; i < 4; i++) {
+                colors[i] = BlockyTree.COLOR_LIST[(packed >>> (2 * i)) & 3];
+            }
+        }
+        return offset;
+    }
+
+    public Move getMove() {
+        return move;
+    }
+
+    public int[] getPath() {
+        return path;
+    }
+
+    public int getPathLength() {
+        return pathLength;
+    }
+
+    public MyColor[] getSmashColors() {
+        return colors;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (logLength + extra > log.length) {
+            log = Arrays.copyOf(log, Math.max(log.length * 2, logLength + extra));
+        }
+    }
+
+    /**
+     * Encodes a board in pre-order, half a byte per Block:
+     * 0 for a Block with children, 1 + its color index for a leaf.
+     */
+    private static byte[] encode(Block root) {
+        byte[] codes = BoardSymmetry.encode(root, 0);
+        byte[] packed = new byte[(codes.length + 1) / 2];
+        for (int i = 0; i < codes.length; i++) {
+            int code = codes[i] == 0 ? 0 : 1 + colorIndex(MyColor.values()[codes[i]]);
+            packed[i / 2] |= code << (4 * (i % 2));
+        }
+        return packed;
+    }
+
+    private static void restoreKernel(Block ref, byte[] snapshot, int[] next) {
+        int i = next[0]++;
+        int code = (snapshot[i / 2] >>> (4 * (i % 2))) & 0xf;
+        if (code == 0) {
+            ref.addChildren(BlockyTree.COLOR_LIST);
+            for (int j = 0; j < 4; j++) {
+                restoreKernel(ref.getChildren()[j], snapshot, next);
+            }
+        } else {
+            ref.clear(BlockyTree.COLOR_LIST[code - 1]);
+        }
+    }
+
+    private static int colorIndex(MyColor color) {
+        for (int i = 0; i < BlockyTree.COLOR_LIST.length; i++) {
+            if (BlockyTree.COLOR_LIST[i] == color) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("No color index for " + color);
+    }
+}
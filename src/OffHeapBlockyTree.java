@@ -0,0 +1,608 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * A Blocky tree stored outside the Java heap, for boards too deep to hold as Block objects.
+ * <p>
+ * Each Block is an 8-byte record in direct or memory-mapped buffers: a header int
+ * packing its color, level and whether it has children, then the index of its first
+ * child. The four children of a Block are always stored next to each other, in the
+ * same upper-right, upper-left, lower-left, lower-right order as Block, so a move
+ * just permutes records and the garbage collector never sees the nodes at all.
+ * <p>
+ * Records are split into chunks of at most 1 GB so a board can be larger than a single
+ * buffer. save() writes a small header followed by the records, and open() maps such a
+ * file straight into memory, so even multi-gigabyte boards open without being read.
+ * The mapping is copy-on-write: moves never change the file, and save() is the only
+ * way to store them.
+ * <p>
+ * The blob and perimeter goals are scored straight from the records, one leaf at a
+ * time, so scoring never builds the grid of cells that flatten() returns. This class
+ * stands on its own rather than sharing an interface with BlockyTree: it has no
+ * players, listeners or undo, just the board and its moves.
+ */
+public class OffHeapBlockyTree {
+    private static final int MAGIC = 0x426c6b79; // "Blky"
+    private static final int HEADER_BYTES = 16;
+    private static final int RECORD_BYTES = 8;
+    private static final int CHUNK_SHIFT = 27; // 2^27 records = 1 GB per chunk.
+    private static final int CHUNK_RECORDS = 1 << CHUNK_SHIFT;
+    // Blob scoring keeps, per record, a union-find parent int and a blob area long,
+    // in chunks of CHUNK_RECORDS entries like the records themselves.
+    private static final int REGION_BYTES = 12;
+    private static final int NONE = -1;
+
+    // Header bits: color index (into COLOR_LIST) in bits 0-1, level in bits 2-7,
+    // and bit 8 set if the Block has children.
+    private static final int COLOR_MASK = 0x3;
+    private static final int LEVEL_SHIFT = 2;
+    private static final int LEVEL_MASK = 0x3f;
+    private static final int HAS_CHILDREN = 1 << 8;
+
+    private final int maxDepth;
+    private ByteBuffer[] chunks;
+    private int capacity; // Records that fit in the chunks.
+    private int size; // Records handed out so far, including freed ones.
+    private int freeList = NONE; // First of a chain of freed groups of 4, linked by their child field.
+    private int selected; // Record index of the selected Block.
+
+    /**
+     * Creates a board that is a single random-colored Block, like BlockyTree.
+     *
+     * @param maxDepth the limiting factor to the depth of the tree
+     * @param random   the source of the root's color
+     */
+    public OffHeapBlockyTree(int maxDepth, Random random) {
+        this(maxDepth);
+        allocate(1);
+        setRecord(0, header(random.nextInt(3), 0, false), NONE);
+    }
+
+    private OffHeapBlockyTree(int maxDepth) {
+        this.maxDepth = maxDepth;
+        this.chunks = new ByteBuffer[0];
+    }
+
+    /**
+     * Copies an on-heap board.
+     *
+     * @param blockyTree the board to copy
+     * @return the copy, with its root selected
+     */
+    public static OffHeapBlockyTree copyOf(BlockyTree blockyTree) {
+        OffHeapBlockyTree tree = new OffHeapBlockyTree(blockyTree.getMaxDepth());
+        tree.allocate(1);
+        tree.copyKernel(blockyTree.getRoot(), 0);
+        return tree;
+    }
+
+    private void copyKernel(Block ref, int index) {
+        if (ref.hasChildren()) {
+            int first = allocate(4);
+            setRecord(index, header(0, ref.level(), true), first);
+            for (int i = 0; i < 4; i++) {
+                copyKernel(ref.getChildren()[i], first + i);
+            }
+        } else {
+            setRecord(index, header(colorIndex(ref.getColor()), ref.level(), false), NONE);
+        }
+    }
+
+    /**
+     * Subdivides the board at random, following the same rule as BlockyTree.buildRandomTree.
+     *
+     * @param random the source of subdivisions and colors
+     */
+    public void buildRandomTree(Random random) {
+        buildRandomTreeKernel(0, random);
+    }
+
+    private void buildRandomTreeKernel(int index, Random random) {
+        int level = level(index);
+        if (random.nextDouble() < Math.exp(-0.25 * level) && level <= maxDepth) {
+            addChildren(index, random);
+            int first = firstChild(index);
+            for (int i = 0; i < 4; i++) {
+                buildRandomTreeKernel(first + i, random);
+            }
+        }
+    }
+
+    /**
+     * Selects the Block reached by following the given child indices from the root.
+     *
+     * @param path  child indices, each 0 to 3 in the order of Block's children
+     * @param depth how many entries of path to follow
+     * @return false if the path leads past a leaf (the selection is then unchanged)
+     */
+    public boolean select(int[] path, int depth) {
+        int target = 0;
+        for (int k = 0; k < depth; k++) {
+            if (!hasChildren(target)) {
+                return false;
+            }
+            target = firstChild(target) + path[k];
+        }
+        selected = target;
+        return true;
+    }
+
+    /**
+     * Swaps the selected Block's contents in the x direction.
+     *
+     * @return false if the selected Block has no children, true otherwise
+     */
+    public boolean horizontalSwap() {
+        return permute(selected, 1, 0, 3, 2);
+    }
+
+    /**
+     * Swaps the selected Block's contents in the y direction.
+     *
+     * @return false if the selected Block has no children, true otherwise
+     */
+    public boolean verticalSwap() {
+        return permute(selected, 3, 2, 1, 0);
+    }
+
+    /**
+     * Rotates the selected Block's children clockwise.
+     *
+     * @return false if the selected Block has no children, true otherwise
+     */
+    public boolean rotateClockwise() {
+        return permute(selected, 1, 2, 3, 0);
+    }
+
+    /**
+     * Rotates the selected Block's children counter clockwise.
+     *
+     * @return false if the selected Block has no children, true otherwise
+     */
+    public boolean rotateCounterclockwise() {
+        return permute(selected, 3, 0, 1, 2);
+    }
+
+    /**
+     * Rearranges a Block's children so that child i becomes the old child from[i],
+     * then does the same below each child, exactly like the recursive moves in Block.
+     */
+    private boolean permute(int index, int from0, int from1, int from2, int from3) {
+        if (!hasChildren(index)) {
+            return false;
+        }
+        int first = firstChild(index);
+        int h0 = headerAt(first + from0), c0 = childAt(first + from0);
+        int h1 = headerAt(first + from1), c1 = childAt(first + from1);
+        int h2 = headerAt(first + from2), c2 = childAt(first + from2);
+        int h3 = headerAt(first + from3), c3 = childAt(first + from3);
+        setRecord(first, h0, c0);
+        setRecord(first + 1, h1, c1);
+        setRecord(first + 2, h2, c2);
+        setRecord(first + 3, h3, c3);
+        for (int i = 0; i < 4; i++) {
+            permute(first + i, from0, from1, from2, from3);
+        }
+        return true;
+    }
+
+    /**
+     * Replaces the selected Block's contents with four random children.
+     *
+     * @param random the source of the children's colors
+     * @return false if the selected Block is the root or its children would be deeper
+     * than maxDepth + 1, as in Block.canSmash
+     */
+    public boolean smash(Random random) {
+        int level = level(selected);
+        if (level == 0 || level > maxDepth) {
+            return false;
+        }
+        if (hasChildren(selected)) {
+            release(firstChild(selected));
+        }
+        addChildren(selected, random);
+        return true;
+    }
+
+    private void addChildren(int index, Random random) {
+        int first = allocate(4);
+        int level = level(index) + 1;
+        for (int i = 0; i < 4; i++) {
+            setRecord(first + i, header(random.nextInt(4), level, false), NONE);
+        }
+        setRecord(index, headerAt(index) | HAS_CHILDREN, first);
+    }
+
+    /**
+     * Puts a group of four children, and everything below them, on the free list.
+     */
+    private void release(int first) {
+        for (int i = 0; i < 4; i++) {
+            if (hasChildren(first + i)) {
+                release(firstChild(first + i));
+            }
+        }
+        setRecord(first, headerAt(first), freeList);
+        freeList = first;
+    }
+
+    /**
+     * Returns a two-dimensional array of the board's unit cells, as BlockyTree.flatten does.
+     *
+     * @return the flattened board
+     */
+    public MyColor[][] flatten() {
+        int gridSize = gridSize();
+        MyColor[][] cells = new MyColor[gridSize][gridSize];
+        flattenKernel(0, 0, 0, cells, gridSize);
+        return cells;
+    }
+
+    private void flattenKernel(int index, int row, int col, MyColor[][] cells, int aSize) {
+        if (hasChildren(index)) {
+            int first = firstChild(index);
+            int half = aSize / 2;
+            flattenKernel(first, row, col + half, cells, half);
+            flattenKernel(first + 1, row, col, cells, half);
+            flattenKernel(first + 2, row + half, col, cells, half);
+            flattenKernel(first + 3, row + half, col + half, cells, half);
+        } else {
+            MyColor color = BlockyTree.COLOR_LIST[headerAt(index) & COLOR_MASK];
+            for (int i = row; i < row + aSize; i++) {
+                Arrays.fill(cells[i], col, col + aSize, color);
+            }
+        }
+    }
+
+    /**
+     * Scores the board for the given goal. Blob and perimeter goals are scored from
+     * the Blocks themselves; any other goal is given the flattened board.
+     *
+     * @param goal the goal
+     * @return the goal's score on this board
+     */
+    public int score(Goal goal) {
+        int target = colorIndex(goal.getColor());
+        if (goal instanceof PerimeterGoal) {
+            return (int) perimeterKernel(0, 0, 0, gridSize(), target);
+        }
+        if (goal instanceof BlobGoal) {
+            return largestBlob(target);
+        }
+        return goal.score(flatten());
+    }
+
+    /**
+     * Counts the border cells of the target color under a Block, visiting only the
+     * Blocks that touch the border. A leaf counts its length once for every side of
+     * the board it lies on, so the corners count double, as in PerimeterGoal.
+     */
+    private long perimeterKernel(int index, int row, int col, int aSize, int target) {
+        int gridSize = gridSize();
+        if (row > 0 && col > 0 && row + aSize < gridSize && col + aSize < gridSize) {
+            return 0;
+        }
+        if (hasChildren(index)) {
+            int first = firstChild(index);
+            int half = aSize / 2;
+            return perimeterKernel(first, row, col + half, half, target)
+                    + perimeterKernel(first + 1, row, col, half, target)
+                    + perimeterKernel(first + 2, row + half, col, half, target)
+                    + perimeterKernel(first + 3, row + half, col + half, half, target);
+        }
+        if ((headerAt(index) & COLOR_MASK) != target) {
+            return 0;
+        }
+        int sides = (row == 0 ? 1 : 0) + (col == 0 ? 1 : 0)
+                + (row + aSize == gridSize ? 1 : 0) + (col + aSize == gridSize ? 1 : 0);
+        return (long) sides * aSize;
+    }
+
+    /**
+     * Finds the largest blob of the target color by joining touching leaves of that
+     * color with union-find. Each leaf is one region however many cells it covers, so
+     * the work and memory grow with the number of records rather than of cells. The
+     * union-find lives in direct memory, 12 bytes per record, so scoring a board too
+     * large for the heap does not need the heap either.
+     */
+    private int largestBlob(int target) {
+        ByteBuffer[] regions = new ByteBuffer[(int) (((long) size + CHUNK_RECORDS - 1) >>> CHUNK_SHIFT)];
+        for (int c = 0; c < regions.length; c++) {
+            int entries = (int) Math.min(CHUNK_RECORDS, (long) size - (long) c * CHUNK_RECORDS);
+            regions[c] = ByteBuffer.allocateDirect(entries * REGION_BYTES).order(ByteOrder.nativeOrder());
+        }
+        long largest = regionKernel(0, gridSize(), target, regions);
+        return (int) Math.min(Integer.MAX_VALUE, largest);
+    }
+
+    /**
+     * Adds every target-colored leaf under a Block to the union-find, joins those
+     * that touch across the edges between its children, and returns the largest
+     * area joined so far.
+     */
+    private long regionKernel(int index, int aSize, int target, ByteBuffer[] regions) {
+        if (!hasChildren(index)) {
+            if ((headerAt(index) & COLOR_MASK) != target) {
+                return 0;
+            }
+            setParent(regions, index, index);
+            setArea(regions, index, (long) aSize * aSize);
+            return (long) aSize * aSize;
+        }
+        int first = firstChild(index);
+        long largest = 0;
+        for (int i = 0; i < 4; i++) {
+            largest = Math.max(largest, regionKernel(first + i, aSize / 2, target, regions));
+        }
+        // Children are upper-right, upper-left, lower-left, lower-right.
+        largest = Math.max(largest, joinAcross(first + 1, first, target, regions));
+        largest = Math.max(largest, joinAcross(first + 2, first + 3, target, regions));
+        largest = Math.max(largest, joinDown(first + 1, first + 2, target, regions));
+        largest = Math.max(largest, joinDown(first, first + 3, target, regions));
+        return largest;
+    }
+
+    /**
+     * Joins the leaves along the shared edge of a Block and the Block to its right.
+     */
+    private long joinAcross(int left, int right, int target, ByteBuffer[] regions) {
+        boolean leftSplit = hasChildren(left);
+        boolean rightSplit = hasChildren(right);
+        if (!leftSplit && !rightSplit) {
+            return union(left, right, target, regions);
+        }
+        int leftTop = leftSplit ? firstChild(left) : left;
+        int leftBottom = leftSplit ? firstChild(left) + 3 : left;
+        int rightTop = rightSplit ? firstChild(right) + 1 : right;
+        int rightBottom = rightSplit ? firstChild(right) + 2 : right;
+        return Math.max(joinAcross(leftTop, rightTop, target, regions),
+                joinAcross(leftBottom, rightBottom, target, regions));
+    }
+
+    /**
+     * Joins the leaves along the shared edge of a Block and the Block below it.
+     */
+    private long joinDown(int top, int bottom, int target, ByteBuffer[] regions) {
+        boolean topSplit = hasChildren(top);
+        boolean bottomSplit = hasChildren(bottom);
+        if (!topSplit && !bottomSplit) {
+            return union(top, bottom, target, regions);
+        }
+        int topLeft = topSplit ? firstChild(top) + 2 : top;
+        int topRight = topSplit ? firstChild(top) + 3 : top;
+        int bottomLeft = bottomSplit ? firstChild(bottom) + 1 : bottom;
+        int bottomRight = bottomSplit ? firstChild(bottom) : bottom;
+        return Math.max(joinDown(topLeft, bottomLeft, target, regions),
+                joinDown(topRight, bottomRight, target, regions));
+    }
+
+    /**
+     * Joins two leaves if both have the target color. Only leaves of that color
+     * have a parent and area set, so the color is checked first.
+     *
+     * @return the area of the joined blob, or 0 if they were not joined
+     */
+    private long union(int a, int b, int target, ByteBuffer[] regions) {
+        if ((headerAt(a) & COLOR_MASK) != target || (headerAt(b) & COLOR_MASK) != target) {
+            return 0;
+        }
+        int rootA = find(a, regions);
+        int rootB = find(b, regions);
+        long areaA = areaAt(regions, rootA);
+        if (rootA != rootB) {
+            long areaB = areaAt(regions, rootB);
+            if (areaA < areaB) {
+                int swap = rootA;
+                rootA = rootB;
+                rootB = swap;
+            }
+            areaA += areaB;
+            setParent(regions, rootB, rootA);
+            setArea(regions, rootA, areaA);
+        }
+        return areaA;
+    }
+
+    private static int find(int index, ByteBuffer[] regions) {
+        int parent = parentAt(regions, index);
+        while (parent != index) {
+            int grandparent = parentAt(regions, parent);
+            setParent(regions, index, grandparent);
+            index = grandparent;
+            parent = parentAt(regions, index);
+        }
+        return index;
+    }
+
+    private static int parentAt(ByteBuffer[] regions, int index) {
+        return regions[index >>> CHUNK_SHIFT].getInt((index & (CHUNK_RECORDS - 1)) * REGION_BYTES);
+    }
+
+    private static void setParent(ByteBuffer[] regions, int index, int parent) {
+        regions[index >>> CHUNK_SHIFT].putInt((index & (CHUNK_RECORDS - 1)) * REGION_BYTES, parent);
+    }
+
+    private static long areaAt(ByteBuffer[] regions, int index) {
+        return regions[index >>> CHUNK_SHIFT].getLong((index & (CHUNK_RECORDS - 1)) * REGION_BYTES + 4);
+    }
+
+    private static void setArea(ByteBuffer[] regions, int index, long area) {
+        regions[index >>> CHUNK_SHIFT].putLong((index & (CHUNK_RECORDS - 1)) * REGION_BYTES + 4, area);
+    }
+
+    /**
+     * Returns the width (and height) of the flattened board in unit cells.
+     *
+     * @return the number of cells along one side
+     */
+    public int gridSize() {
+        return 1 << (maxDepth + 1);
+    }
+
+    /**
+     * Counts the Blocks currently in the tree (not counting freed records).
+     *
+     * @return the number of Blocks, including the root
+     */
+    public long nodeCount() {
+        return nodeCountKernel(0);
+    }
+
+    private long nodeCountKernel(int index) {
+        long count = 1;
+        if (hasChildren(index)) {
+            int first = firstChild(index);
+            for (int i = 0; i < 4; i++) {
+                count += nodeCountKernel(first + i);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Writes the board to a file that open() can map.
+     *
+     * @param file the file to write
+     */
+    public void save(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(maxDepth).putInt(size).putInt(freeList).flip();
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+            for (int c = 0; c < chunks.length; c++) {
+                ByteBuffer records = chunks[c].duplicate();
+                records.clear().limit((int) Math.min(records.capacity(), (long) (size - c * CHUNK_RECORDS) * RECORD_BYTES));
+                while (records.hasRemaining()) {
+                    channel.write(records);
+                }
+            }
+        }
+    }
+
+    /**
+     * Maps a file written by save(). The mapping is private: the first change to a
+     * page copies it, so moves never reach the file and the board's size and free
+     * list in its header stay as saved. Save the board to keep its moves, to another
+     * file, since this one is still mapped.
+     *
+     * @param file the file to map
+     * @return the board, with its root selected
+     */
+    public static OffHeapBlockyTree open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            if (header.getInt() != MAGIC) {
+                throw new IOException(file + " is not a saved board");
+            }
+            OffHeapBlockyTree tree = new OffHeapBlockyTree(header.getInt());
+            tree.size = header.getInt();
+            tree.freeList = header.getInt();
+
+            int chunkCount = (int) (((long) tree.size + CHUNK_RECORDS - 1) >>> CHUNK_SHIFT);
+            tree.chunks = new ByteBuffer[chunkCount];
+            for (int c = 0; c < chunkCount; c++) {
+                long records = Math.min(CHUNK_RECORDS, (long) tree.size - (long) c * CHUNK_RECORDS);
+                MappedByteBuffer chunk = channel.map(FileChannel.MapMode.PRIVATE,
+                        HEADER_BYTES + (long) c * CHUNK_RECORDS * RECORD_BYTES, records * RECORD_BYTES);
+                tree.chunks[c] = chunk.order(ByteOrder.LITTLE_ENDIAN);
+            }
+            tree.capacity = tree.size;
+            return tree;
+        }
+    }
+
+    /**
+     * Hands out count consecutive records, reusing a freed group of 4 when possible.
+     *
+     * @return the index of the first record
+     */
+    private int allocate(int count) {
+        if (count == 4 && freeList != NONE) {
+            int first = freeList;
+            freeList = childAt(first);
+            return first;
+        }
+        if ((size & (CHUNK_RECORDS - 1)) + count > CHUNK_RECORDS) {
+            size = (size + CHUNK_RECORDS - 1) & ~(CHUNK_RECORDS - 1); // Keep a group of 4 within one chunk.
+        }
+        while (size + count > capacity) {
+            grow();
+        }
+        int first = size;
+        size += count;
+        return first;
+    }
+
+    /**
+     * Doubles the last chunk, or starts a new one once it is full. Chunks mapped
+     * from a file are copied into direct memory when they grow, which leaves the file
+     * as it was, since the mapping never writes to it.
+     */
+    private void grow() {
+        int last = chunks.length - 1;
+        if (last >= 0 && chunks[last].capacity() < CHUNK_RECORDS * RECORD_BYTES) {
+            int records = Math.min(CHUNK_RECORDS, Math.max(1024, chunks[last].capacity() / RECORD_BYTES * 2));
+            ByteBuffer bigger = ByteBuffer.allocateDirect(records * RECORD_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            ByteBuffer old = chunks[last].duplicate();
+            old.clear();
+            bigger.put(old).clear();
+            chunks[last] = bigger;
+            capacity = last * CHUNK_RECORDS + records;
+        } else {
+            chunks = Arrays.copyOf(chunks, chunks.length + 1);
+            chunks[last + 1] = ByteBuffer.allocateDirect(1024 * RECORD_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            capacity = (last + 1) * CHUNK_RECORDS + 1024;
+        }
+    }
+
+    private static int header(int colorIndex, int level, boolean hasChildren) {
+        return colorIndex | (level << LEVEL_SHIFT) | (hasChildren ? HAS_CHILDREN : 0);
+    }
+
+    private static int colorIndex(MyColor color) {
+        for (int i = 0; i < BlockyTree.COLOR_LIST.length; i++) {
+            if (BlockyTree.COLOR_LIST[i] == color) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("No color index for " + color);
+    }
+
+    private int level(int index) {
+        return (headerAt(index) >>> LEVEL_SHIFT) & LEVEL_MASK;
+    }
+
+    private boolean hasChildren(int index) {
+        return (headerAt(index) & HAS_CHILDREN) != 0;
+    }
+
+    private int firstChild(int index) {
+        return childAt(index);
+    }
+
+    private int headerAt(int index) {
+        return chunks[index >>> CHUNK_SHIFT].getInt((index & (CHUNK_RECORDS - 1)) * RECORD_BYTES);
+    }
+
+    private int childAt(int index) {
+        return chunks[index >>> CHUNK_SHIFT].getInt((index & (CHUNK_RECORDS - 1)) * RECORD_BYTES + 4);
+    }
+
+    private void setRecord(int index, int header, int child) {
+        ByteBuffer chunk = chunks[index >>> CHUNK_SHIFT];
+        int offset = (index & (CHUNK_RECORDS - 1)) * RECORD_BYTES;
+        chunk.putInt(offset, header);
+        chunk.putInt(offset + 4, child);
+    }
+}
@@ -1,7 +1,9 @@
 /**
  * A goal to achieve the most squares of the goal's color on the perimeter of the board.
  */
-public class PerimeterGoal extends Goal {
+public class PerimeterGoal extends IncrementalGoal {
+    private int points; // The score on the attached tree.
+
     public PerimeterGoal(MyColor targetColor) {
         super(targetColor);
     }
@@ -10,15 +12,14 @@ public class PerimeterGoal extends Goal {
      * Count the number of the targetColor squares that are on the perimeter.
      * Note: the corners count double!
      *
-     * @param blockyTree the tree to be scored
+     * @param array the flattened tree to be scored
      * @return the total number of targetColor "units" on the perimeter
      */
     @Override
-    public int score(BlockyTree blockyTree) {
+    public int score(MyColor[][] array) {
         int points = 0;
 
         MyColor targetColor = getColor();
-        MyColor[][] array = blockyTree.flatten();
 
         for (int i = 0; i < array.length; i++) {
             if (array[0][i] == targetColor){
@@ -37,6 +38,57 @@ public class PerimeterGoal extends Goal {
         return points;
     }
 
+    @Override
+    public int currentScore() {
+        return points;
+    }
+
+    @Override
+    protected void reset(MyColor[][] cells) {
+        points = score(cells);
+    }
+
+    /**
+     * Only the border cells inside the changed square can change the score,
+     * so only those are looked at. Each side a cell lies on counts once,
+     * which is what makes the corners count double.
+     *
+     * @param change the changed square
+     */
+    @Override
+    protected void update(BoardChange change) {
+        int first = change.getGridSize() - 1;
+        int top = change.getRow();
+        int left = change.getCol();
+        int end = change.getSize();
+
+        for (int k = 0; k < end; k++) {
+            if (top == 0) {
+                points += delta(change, 0, left + k);
+            }
+            if (top + end - 1 == first) {
+                points += delta(change, first, left + k);
+            }
+            if (left == 0) {
+                points += delta(change, top + k, 0);
+            }
+            if (left + end - 1 == first) {
+                points += delta(change, top + k, first);
+            }
+        }
+    }
+
+    private int delta(BoardChange change, int row, int col) {
+        int delta = 0;
+        if (change.before(row, col) == getColor()) {
+            delta--;
+        }
+        if (change.after(row, col) == getColor()) {
+            delta++;
+        }
+        return delta;
+    }
+
     /**
      * A short description of the scoring goal.
      *
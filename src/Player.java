@@ -27,9 +27,22 @@ public class Player {
      * @return the score
      */
     public int getScore() {
+        if (hasLiveScore()) {
+            return ((IncrementalGoal) goal).currentScore();
+        }
         return goal.score(blockyTree);
     }
 
+    /**
+     * Checks whether the player's goal keeps its score up to date with the game's
+     * tree, so that getScore is cheap.
+     *
+     * @return true if the goal is incremental and attached to the game's tree
+     */
+    public boolean hasLiveScore() {
+        return goal instanceof IncrementalGoal && ((IncrementalGoal) goal).isAttachedTo(blockyTree);
+    }
+
     /**
      * Creates a string representation for use on the UI panel.
      *
@@ -37,8 +50,18 @@ public class Player {
      */
     @Override
     public String toString() {
+        return statusString(getScore());
+    }
+
+    /**
+     * Creates the same string as toString, using a score that was already computed.
+     *
+     * @param score the player's score
+     * @return the string representation
+     */
+    public String statusString(int score) {
         return "(" + getColor() + " " + getGoal().description() + "): " +
-                getScore() + ", " + (isSmashUsed() ? " Smash used" : " Smash remaining");
+                score + ", " + (isSmashUsed() ? " Smash used" : " Smash remaining");
     }
 
     public Goal getGoal() {
@@ -59,4 +82,11 @@ public class Player {
     public void usedSmash() {
         smashUsed = true;
     }
+
+    /**
+     * Give the player their smash back, e.g. when it is undone.
+     */
+    public void restoreSmash() {
+        smashUsed = false;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,342 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+
+/**
+ * Plays random games by the rules of Game on every core and writes each position,
+ * the move played from it and the game's outcome to a training data file.
+ * <p>
+ * Usage: java SelfPlay [games=N] [depth=N] [turns=N] [players=N] [threads=N] [seed=N] [out=FILE]
+ * <p>
+ * As in Game, each player gets a random BlobGoal or PerimeterGoal, may smash once,
+ * and the game ends after turns rounds. Every worker thread owns a Random and one
+ * BlockyTree that it rebuilds for each game, reseeding the Random from the seed and
+ * the game's index first. Records are written in game index order, so a run with the
+ * same seed writes the same file whatever the number of threads.
+ * <p>
+ * The file is a sequence of records, one per game, each written as two big-endian
+ * ints (compressed length, uncompressed length) followed by the Deflate-compressed
+ * record. Inside a record, numbers are unsigned varints:
+ * <pre>
+ *   depth, players, turns
+ *   per player: goal (0 = BlobGoal, 1 = PerimeterGoal), color (index into COLOR_LIST)
+ *   moves, then per move:
+ *     board length, board (BoardSymmetry.encode of the board before the move)
+ *     player, path length, path (child indices to the moved Block)
+ *     move (Move ordinal, or Move.values().length for a pass with an empty board),
+ *     and for a smash the four new children's color indices
+ *   per player: final score
+ *   winner
+ * </pre>
+ */
+public class SelfPlay {
+    // Compressed output is handed to the channel in chunks about this big.
+    private static final int FLUSH_BYTES = 1 << 20;
+    // Give up on finding a legal move for a player after this many random tries.
+    private static final int MAX_ATTEMPTS = 64;
+    // A worker waits before handing in a game this many games ahead of the oldest one
+    // not yet written, so one slow game cannot leave the others piling up in memory.
+    private static final int WINDOW = 1024;
+
+    private final int depth;
+    private final int numPlayers;
+    private final int numTurns;
+    private final FileChannel channel;
+    private final long games;
+    private final AtomicLong nextGame = new AtomicLong();
+    private final AtomicLong positions = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+
+    // Records that finished before an earlier game's, by game index, waiting for their
+    // turn to be written. The lock on it also guards the fields below.
+    private final Map<Long, byte[]> finished = new HashMap<>();
+    private long nextToWrite;
+    private boolean stopped; // Set when a worker fails, so none waits for its game.
+    private ByteBuffer pending = ByteBuffer.allocateDirect(FLUSH_BYTES * 2);
+
+    public SelfPlay(int depth, int numPlayers, int numTurns, long games, FileChannel channel) {
+        this.depth = depth;
+        this.numPlayers = numPlayers;
+        this.numTurns = numTurns;
+        this.games = games;
+        this.channel = channel;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq < 0) {
+                throw new IllegalArgumentException("Expected key=value, got " + arg);
+            }
+            options.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+
+        long games = Long.parseLong(options.getOrDefault("games", "100000"));
+        int depth = Integer.parseInt(options.getOrDefault("depth", "2"));
+        int turns = Integer.parseInt(options.getOrDefault("turns", "5"));
+        int players = Integer.parseInt(options.getOrDefault("players", "2"));
+        int threads = Integer.parseInt(options.getOrDefault("threads",
+                String.valueOf(Runtime.getRuntime().availableProcessors())));
+        long seed = Long.parseLong(options.getOrDefault("seed", String.valueOf(System.nanoTime())));
+        Path out = Paths.get(options.getOrDefault("out", "selfplay.bin"));
+
+        try (FileChannel channel = FileChannel.open(out, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            SelfPlay selfPlay = new SelfPlay(depth, players, turns, games, channel);
+            long start = System.nanoTime();
+            selfPlay.run(threads, seed);
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            System.out.printf("%d games, %d positions, %d bytes in %.2f s%n",
+                    games, selfPlay.positions.get(), selfPlay.bytesWritten.get(), seconds);
+            System.out.printf("%.0f games/s, %.0f games/s per core (%d threads)%n",
+                    games / seconds, games / seconds / threads, threads);
+        }
+    }
+
+    /**
+     * Plays all the games on the given number of threads and waits for them.
+     *
+     * @param threads the number of worker threads
+     * @param seed    the seed each game's own seed is derived from
+     */
+    public void run(int threads, long seed) throws InterruptedException, IOException {
+        List<Worker> workers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            Worker worker = new Worker(seed);
+            workers.add(worker);
+            worker.start();
+        }
+        for (Worker worker : workers) {
+            worker.join();
+        }
+        for (Worker worker : workers) {
+            if (worker.failure instanceof IOException) {
+                throw (IOException) worker.failure;
+            } else if (worker.failure instanceof RuntimeException) {
+                throw (RuntimeException) worker.failure;
+            } else if (worker.failure instanceof Error) {
+                throw (Error) worker.failure;
+            }
+        }
+        flush();
+    }
+
+    /**
+     * Queues a game's record for writing and writes every record whose turn has come,
+     * handing the output to the channel in chunks about FLUSH_BYTES big.
+     *
+     * @param game   the game's index
+     * @param record the record, framed as it goes in the file
+     * @return false if another worker failed, in which case nothing more is written
+     */
+    private boolean finish(long game, byte[] record) throws IOException, InterruptedException {
+        synchronized (finished) {
+            while (game - nextToWrite >= WINDOW && !stopped) {
+                finished.wait();
+            }
+            if (stopped) {
+                return false;
+            }
+            finished.put(game, record);
+            for (byte[] next; (next = finished.remove(nextToWrite)) != null; nextToWrite++) {
+                if (pending.remaining() < next.length) {
+                    flush();
+                    if (pending.capacity() < next.length) {
+                        pending = ByteBuffer.allocateDirect(next.length);
+                    }
+                }
+                pending.put(next);
+                if (pending.position() >= FLUSH_BYTES) {
+                    flush();
+                }
+            }
+            finished.notifyAll();
+            return true;
+        }
+    }
+
+    /**
+     * Stops the other workers after one failed.
+     */
+    private void stopWorkers() {
+        synchronized (finished) {
+            stopped = true;
+            finished.notifyAll();
+        }
+    }
+
+    private void flush() throws IOException {
+        synchronized (finished) {
+            pending.flip();
+            bytesWritten.addAndGet(pending.remaining());
+            while (pending.hasRemaining()) {
+                channel.write(pending);
+            }
+            pending.clear();
+        }
+    }
+
+    /**
+     * Plays games until none are left, handing their records to finish.
+     */
+    private class Worker extends Thread {
+        private final long seed;
+        private final Random random = new Random();
+        private final BlockyTree blockyTree;
+        private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        private final ByteArrayOutputStream record = new ByteArrayOutputStream();
+        private final ByteArrayOutputStream board = new ByteArrayOutputStream();
+        private final int[] path;
+        private byte[] compressed = new byte[4096];
+        private Throwable failure;
+
+        Worker(long seed) {
+            this.seed = seed;
+            this.blockyTree = new BlockyTree(depth, random);
+            this.path = new int[depth + 2];
+        }
+
+        @Override
+        public void run() {
+            try {
+                for (long game = nextGame.getAndIncrement(); game < games; game = nextGame.getAndIncrement()) {
+                    random.setSeed(seed + 0x9E3779B97F4A7C15L * (game + 1));
+                    playGame();
+                    if (!writeRecord(game)) {
+                        return;
+                    }
+                }
+            } catch (Throwable e) {
+                // Rethrown by SelfPlay.run once every worker has stopped.
+                failure = e;
+                stopWorkers();
+            }
+        }
+
+        private void playGame() {
+            blockyTree.rebuild();
+            record.reset();
+            writeVarint(depth);
+            writeVarint(numPlayers);
+            writeVarint(numTurns);
+
+            Player[] players = new Player[numPlayers];
+            for (int i = 0; i < numPlayers; i++) {
+                int color = random.nextInt(4);
+                IncrementalGoal goal;
+                if (random.nextDouble() < .5) {
+                    goal = new BlobGoal(BlockyTree.COLOR_LIST[color]);
+                    writeVarint(0);
+                } else {
+                    goal = new PerimeterGoal(BlockyTree.COLOR_LIST[color]);
+                    writeVarint(1);
+                }
+                writeVarint(color);
+                goal.attach(blockyTree);
+                players[i] = new Player(i, goal, blockyTree);
+            }
+
+            writeVarint(numPlayers * numTurns);
+            for (int turn = 0; turn < numTurns; turn++) {
+                for (int current = 0; current < numPlayers; current++) {
+                    playMove(players[current], current);
+                }
+            }
+
+            int winner = 0;
+            for (int i = 0; i < numPlayers; i++) {
+                writeVarint(players[i].getScore());
+                if (players[i].getScore() > players[winner].getScore()) {
+                    winner = i;
+                }
+            }
+            writeVarint(winner);
+
+            for (Player player : players) {
+                ((IncrementalGoal) player.getGoal()).detach();
+            }
+            positions.addAndGet((long) numPlayers * numTurns);
+        }
+
+        /**
+         * Picks random Blocks and moves until one succeeds, then records it.
+         * A player who finds no legal move passes, recorded as a move with an empty board.
+         */
+        private void playMove(Player player, int index) {
+            board.reset();
+            BoardSymmetry.encode(blockyTree.getRoot(), 0, board);
+
+            for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+                int pathLength = 0;
+                Block ref = blockyTree.getRoot();
+                while (ref.hasChildren() && random.nextInt(3) != 0) {
+                    path[pathLength] = random.nextInt(4);
+                    ref = ref.getChildren()[path[pathLength++]];
+                }
+                Move move = Move.values()[random.nextInt(player.isSmashUsed() ? 4 : 5)];
+
+                blockyTree.select(path, pathLength);
+                if (blockyTree.move(move, player)) {
+                    writeVarint(board.size());
+                    record.write(board.toByteArray(), 0, board.size());
+                    writeVarint(index);
+                    writeVarint(pathLength);
+                    for (int k = 0; k < pathLength; k++) {
+                        writeVarint(path[k]);
+                    }
+                    writeVarint(move.ordinal());
+                    if (move == Move.SMASH) {
+                        for (Block child : blockyTree.getSelected().getChildren()) {
+                            writeVarint(child.getColor().ordinal() - MyColor.BLUE.ordinal());
+                        }
+                    }
+                    return;
+                }
+            }
+            writeVarint(0);
+            writeVarint(index);
+            writeVarint(0);
+            writeVarint(Move.values().length);
+        }
+
+        private boolean writeRecord(long game) throws IOException, InterruptedException {
+            byte[] raw = record.toByteArray();
+            deflater.reset();
+            deflater.setInput(raw);
+            deflater.finish();
+            int length = 0;
+            while (!deflater.finished()) {
+                if (length == compressed.length) {
+                    compressed = Arrays.copyOf(compressed, compressed.length * 2);
+                }
+                length += deflater.deflate(compressed, length, compressed.length - length);
+            }
+
+            byte[] framed = new byte[length + 8];
+            ByteBuffer.wrap(framed).putInt(length).putInt(raw.length).put(compressed, 0, length);
+            return finish(game, framed);
+        }
+
+        private void writeVarint(int value) {
+            while ((value & ~0x7F) != 0) {
+                record.write((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            record.write(value);
+        }
+    }
+}
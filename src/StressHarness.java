@@ -0,0 +1,352 @@
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Runs random boards through long random move sequences on the reference implementations
+ * and every faster alternative, checks that they always agree, and measures how many
+ * operations per second each one manages.
+ * <p>
+ * Usage: java StressHarness [seconds=N] [depth=N] [moves=N] [seed=N]
+ * [baseline=FILE] [threshold=FRACTION] [writeBaseline=true]
+ * <p>
+ * The references are Block's moves, BlockyTree.flatten and the full BlobGoal and
+ * PerimeterGoal scores. The alternatives are OffHeapBlockyTree, the incremental
+ * goals, and replaying each board's moves through a MoveBatch, which is timed against
+ * replaying the same moves one by one. The incremental goals do their work while the
+ * move is made, so they are compared as a whole: "move + score all goals" is a move
+ * and every full score, and "move + score all goals incremental" a move with the
+ * goals listening plus reading every score.
+ * <p>
+ * Any disagreement stops the run with the seed, board and move that caused it
+ * (exit status 2). With a baseline file, a throughput more than threshold below the
+ * baseline's fails the run (exit status 1); writeBaseline=true saves this run's
+ * throughputs as the new baseline instead.
+ */
+public class StressHarness {
+    private static final int REPLAY_ROUNDS = 10;
+
+    private final int depth;
+    private final int movesPerBoard;
+    private final Map<String, long[]> timings = new TreeMap<>(); // Name -> {operations, nanoseconds}.
+
+    public StressHarness(int depth, int movesPerBoard) {
+        this.depth = depth;
+        this.movesPerBoard = movesPerBoard;
+    }
+
+    public static void main(String[] args) throws IOException {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq < 0) {
+                throw new IllegalArgumentException("Expected key=value, got " + arg);
+            }
+            options.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        double seconds = Double.parseDouble(options.getOrDefault("seconds", "10"));
+        int depth = Integer.parseInt(options.getOrDefault("depth", "3"));
+        int moves = Integer.parseInt(options.getOrDefault("moves", "500"));
+        long seed = Long.parseLong(options.getOrDefault("seed", String.valueOf(System.nanoTime())));
+        double threshold = Double.parseDouble(options.getOrDefault("threshold", "0.2"));
+        String baseline = options.get("baseline");
+
+        StressHarness harness = new StressHarness(depth, moves);
+        System.out.println("seed=" + seed);
+        try {
+            harness.run(seed, (long) (seconds * 1e9));
+        } catch (AssertionError e) {
+            System.out.println("MISMATCH: " + e.getMessage());
+            System.exit(2);
+        }
+        System.out.print(harness.report());
+
+        if (baseline != null) {
+            Path file = Paths.get(baseline);
+            if (Boolean.parseBoolean(options.getOrDefault("writeBaseline", "false"))) {
+                harness.writeBaseline(file);
+                System.out.println("Wrote baseline to " + file);
+            } else if (!harness.compareToBaseline(file, threshold)) {
+                System.exit(1);
+            }
+        }
+    }
+
+    /**
+     * Plays random boards until the time is up.
+     *
+     * @param seed  the seed for the first board; each board after it gets the next seed
+     * @param nanos how long to run
+     */
+    public void run(long seed, long nanos) {
+        long end = System.nanoTime() + nanos;
+        for (long boardSeed = seed; System.nanoTime() < end; boardSeed++) {
+            runBoard(boardSeed);
+        }
+    }
+
+    /**
+     * Builds one board three times from the same seed (plain, with incremental goals,
+     * and off the heap), so all three also smash alike, then makes the same random
+     * moves on each and compares everything after every move.
+     */
+    private void runBoard(long seed) {
+        BlockyTree reference = new BlockyTree(depth, new Random(seed));
+        reference.buildRandomTree();
+        BlockyTree incremental = new BlockyTree(depth, new Random(seed));
+        incremental.buildRandomTree();
+        Random offHeapRandom = new Random(seed);
+        OffHeapBlockyTree offHeap = new OffHeapBlockyTree(depth, offHeapRandom);
+        offHeap.buildRandomTree(offHeapRandom);
+
+        IncrementalGoal[] goals = new IncrementalGoal[2 * BlockyTree.COLOR_LIST.length];
+        for (int i = 0; i < BlockyTree.COLOR_LIST.length; i++) {
+            goals[2 * i] = new BlobGoal(BlockyTree.COLOR_LIST[i]);
+            goals[2 * i + 1] = new PerimeterGoal(BlockyTree.COLOR_LIST[i]);
+        }
+        for (IncrementalGoal goal : goals) {
+            goal.attach(incremental);
+        }
+
+        MoveBatch batch = new MoveBatch();
+
+        Random random = new Random(~seed);
+        int[] path = new int[depth + 2];
+        for (int m = 0; m < movesPerBoard; m++) {
+            int pathLength = 0;
+            Block ref = reference.getRoot();
+            while (ref.hasChildren() && random.nextInt(3) != 0) {
+                path[pathLength] = random.nextInt(4);
+                ref = ref.getChildren()[path[pathLength++]];
+            }
+            Move move = Move.values()[random.nextInt(Move.values().length)];
+            String where = "seed " + seed + ", move " + m + " (" + move + " at " +
+                    Arrays.toString(Arrays.copyOf(path, pathLength)) + ")";
+
+            reference.select(path, pathLength);
+            incremental.select(path, pathLength);
+            offHeap.select(path, pathLength);
+
+            // What it takes to have every goal's score after a move, both ways: the
+            // incremental goals do their work in listeners during the move itself.
+            long t = System.nanoTime();
+            boolean referenceMoved = reference.move(move, new Player(0, goals[0], reference));
+            long fullNanos = record("move Block", t);
+            t = System.nanoTime();
+            boolean incrementalMoved = incremental.move(move, new Player(0, goals[0], incremental));
+            long incrementalNanos = record("move Block + incremental goals", t);
+            t = System.nanoTime();
+            boolean offHeapMoved = offHeapMove(offHeap, move, offHeapRandom);
+            record("move OffHeapBlockyTree", t);
+            check(referenceMoved == incrementalMoved && referenceMoved == offHeapMoved, where, "move results differ");
+
+            batch.add(path, pathLength, move);
+            if (m == movesPerBoard - 1) {
+                replay(seed, batch, goals[0], reference, where);
+            }
+
+            t = System.nanoTime();
+            MyColor[][] cells = reference.flatten();
+            record("flatten BlockyTree", t);
+            t = System.nanoTime();
+            MyColor[][] offHeapCells = offHeap.flatten();
+            record("flatten OffHeapBlockyTree", t);
+            check(Arrays.deepEquals(cells, offHeapCells), where, "off-heap board differs");
+            check(Arrays.deepEquals(cells, incremental.flatten()), where, "incremental board differs");
+
+            for (IncrementalGoal goal : goals) {
+                String name = goal.getClass().getSimpleName();
+                t = System.nanoTime();
+                int full = goal.score(reference);
+                fullNanos += record("score " + name, t);
+                t = System.nanoTime();
+                int live = goal.currentScore();
+                incrementalNanos += System.nanoTime() - t;
+                check(full == live, where, name + " " + goal.getColor() + " scored " + live +
+                        " incrementally but " + full + " in full");
+                t = System.nanoTime();
+                int offHeapScore = offHeap.score(goal);
+                record("score " + name + " OffHeapBlockyTree", t);
+                check(full == offHeapScore, where, name + " " + goal.getColor() + " scored " + offHeapScore +
+                        " off the heap but " + full + " in full");
+            }
+            recordNanos("move + score all goals", fullNanos);
+            recordNanos("move + score all goals incremental", incrementalNanos);
+        }
+
+        for (IncrementalGoal goal : goals) {
+            goal.detach();
+        }
+    }
+
+    /**
+     * Replays a board's moves from its start, the way a saved game would be, once as a
+     * MoveBatch and once move by move, and checks both against the reference. A
+     * replay is short next to the rest of a board's work, so it is repeated
+     * REPLAY_ROUNDS times to get the batch code as warmed up as the single moves.
+     */
+    private void replay(long seed, MoveBatch batch, Goal goal, BlockyTree reference, String where) {
+        int[] path = new int[depth + 2];
+        for (int round = 0; round < REPLAY_ROUNDS; round++) {
+            BlockyTree batched = new BlockyTree(depth, new Random(seed));
+            batched.buildRandomTree();
+            BlockyTree replayed = new BlockyTree(depth, new Random(seed));
+            replayed.buildRandomTree();
+
+            long t = System.nanoTime();
+            batched.apply(batch, unlimitedSmashes(goal, batched));
+            record("replay MoveBatch", t, batch.size());
+            t = System.nanoTime();
+            Player player = unlimitedSmashes(goal, replayed);
+            for (int k = 0; k < batch.size(); k++) {
+                batch.getPath(k, path);
+                if (replayed.select(path, batch.getPathLength(k))) {
+                    replayed.move(batch.getMove(k), player);
+                }
+            }
+            record("replay one by one", t, batch.size());
+
+            check(Arrays.deepEquals(reference.flatten(), batched.flatten()), where, "batched replay differs");
+            check(Arrays.deepEquals(reference.flatten(), replayed.flatten()), where, "replay differs");
+        }
+    }
+
+    /**
+     * Makes a player who can smash any number of times, since every move above gets
+     * a fresh Player and so may smash.
+     */
+    private static Player unlimitedSmashes(Goal goal, BlockyTree blockyTree) {
+        return new Player(0, goal, blockyTree) {
+            @Override
+            public void usedSmash() {
+            }
+        };
+    }
+
+    private static boolean offHeapMove(OffHeapBlockyTree offHeap, Move move, Random random) {
+        switch (move) {
+            case HORIZONTAL_SWAP:
+                return offHeap.horizontalSwap();
+            case VERTICAL_SWAP:
+                return offHeap.verticalSwap();
+            case ROTATE_CLOCKWISE:
+                return offHeap.rotateClockwise();
+            case ROTATE_COUNTERCLOCKWISE:
+                return offHeap.rotateCounterclockwise();
+            default:
+                return offHeap.smash(random);
+        }
+    }
+
+    private long record(String name, long start) {
+        return record(name, start, 1);
+    }
+
+    /**
+     * Records operations timed from start until now.
+     *
+     * @return the time they took, in nanoseconds
+     */
+    private long record(String name, long start, int operations) {
+        long nanos = System.nanoTime() - start;
+        long[] timing = timings.computeIfAbsent(name, key -> new long[2]);
+        timing[0] += operations;
+        timing[1] += nanos;
+        return nanos;
+    }
+
+    private void recordNanos(String name, long nanos) {
+        long[] timing = timings.computeIfAbsent(name, key -> new long[2]);
+        timing[0]++;
+        timing[1] += nanos;
+    }
+
+    private static void check(boolean condition, String where, String what) {
+        if (!condition) {
+            throw new AssertionError(what + " at " + where);
+        }
+    }
+
+    /**
+     * Returns the measured throughput of every operation.
+     *
+     * @return operations per second by name
+     */
+    public Map<String, Double> throughput() {
+        Map<String, Double> result = new TreeMap<>();
+        for (Map.Entry<String, long[]> entry : timings.entrySet()) {
+            long[] timing = entry.getValue();
+            result.put(entry.getKey(), timing[1] == 0 ? 0 : timing[0] * 1e9 / timing[1]);
+        }
+        return result;
+    }
+
+    /**
+     * Formats the measurements as a table.
+     *
+     * @return the table
+     */
+    public String report() {
+        StringBuilder out = new StringBuilder();
+        out.append(String.format("%-40s %12s %14s%n", "operation", "count", "ops/s"));
+        for (Map.Entry<String, Double> entry : throughput().entrySet()) {
+            out.append(String.format("%-40s %12d %14.0f%n", entry.getKey(), timings.get(entry.getKey())[0], entry.getValue()));
+        }
+        return out.toString();
+    }
+
+    /**
+     * Saves this run's throughputs as a baseline.
+     *
+     * @param file the baseline file to write
+     */
+    public void writeBaseline(Path file) throws IOException {
+        Properties properties = new Properties();
+        for (Map.Entry<String, Double> entry : throughput().entrySet()) {
+            properties.setProperty(entry.getKey(), String.valueOf(Math.round(entry.getValue())));
+        }
+        try (Writer writer = Files.newBufferedWriter(file)) {
+            properties.store(writer, "StressHarness throughput baseline, operations per second");
+        }
+    }
+
+    /**
+     * Compares this run against a saved baseline, printing every regression.
+     *
+     * @param file      the baseline file
+     * @param threshold the largest allowed drop, as a fraction of the baseline
+     * @return false if any operation is slower than the baseline allows
+     */
+    public boolean compareToBaseline(Path file, double threshold) throws IOException {
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(file)) {
+            properties.load(reader);
+        }
+
+        Map<String, Double> current = throughput();
+        boolean ok = true;
+        for (String name : new TreeSet<>(properties.stringPropertyNames())) {
+            double expected = Double.parseDouble(properties.getProperty(name));
+            Double actual = current.get(name);
+            if (actual == null) {
+                System.out.println("MISSING: " + name + " was not measured");
+                ok = false;
+            } else if (actual < expected * (1 - threshold)) {
+                System.out.printf("REGRESSION: %s %.0f ops/s, baseline %.0f ops/s (%.0f%% slower)%n",
+                        name, actual, expected, 100 * (1 - actual / expected));
+                ok = false;
+            }
+        }
+        return ok;
+    }
+}
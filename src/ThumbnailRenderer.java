@@ -0,0 +1,312 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Draws boards into PNG thumbnails without a window, a display or Graphics2D.
+ * <p>
+ * The picture matches BlockyTree.draw: each leaf filled with its color, one-pixel
+ * black lines between Blocks, and optionally the translucent highlight over the
+ * selected Block. Pixels are written straight into an int[] of ARGB values, as
+ * BufferedImage.TYPE_INT_ARGB stores them, and encoded by a small PNG writer, so any
+ * number of renderers can run side by side, one per thread, even with
+ * java.awt.headless=true.
+ * <p>
+ * A renderer holds a native Deflater, so close it when done with it.
+ * <p>
+ * Usage: java ThumbnailRenderer [count] [size] [depth] [threads] [outDir]
+ * renders count random boards and reports thumbnails per second.
+ */
+public class ThumbnailRenderer implements AutoCloseable {
+    private static final int OPAQUE = 0xff000000;
+    private static final int BLACK = OPAQUE;
+    private static final int HIGHLIGHT = 0x3de9e9; // Same as the overlay in BlockyTree.draw.
+    private static final int HIGHLIGHT_ALPHA = 100;
+    private static final int[] ARGB = new int[MyColor.values().length]; // By MyColor ordinal.
+    private static final byte[] PNG_SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+
+    static {
+        for (MyColor color : MyColor.values()) {
+            if (color != MyColor.NONE) {
+                ARGB[color.ordinal()] = color.color().getRGB() | OPAQUE;
+            }
+        }
+    }
+
+    private final int size;
+    private final boolean showSelection;
+    private final int[] pixels;
+    private final byte[] scanlines;
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private final ByteArrayOutputStream png = new ByteArrayOutputStream();
+    private final CRC32 crc = new CRC32();
+    private byte[] compressed = new byte[1 << 16];
+
+    /**
+     * Creates a renderer for square thumbnails.
+     *
+     * @param size          the width and height of a thumbnail in pixels
+     * @param showSelection whether to highlight the selected Block
+     */
+    public ThumbnailRenderer(int size, boolean showSelection) {
+        this.size = size;
+        this.showSelection = showSelection;
+        this.pixels = new int[size * size];
+        this.scanlines = new byte[size * (1 + 4 * size)];
+    }
+
+    /**
+     * Draws a board into this renderer's pixel buffer.
+     *
+     * @param blockyTree the board
+     * @return the buffer, row by row, as 0xAARRGGBB values; reused by the next render
+     */
+    public int[] render(BlockyTree blockyTree) {
+        int gridSize = blockyTree.gridSize();
+        renderKernel(blockyTree.getRoot(), 0, 0, gridSize, gridSize);
+
+        // The kernel draws each Block's top and left edges; close off the board.
+        for (int i = 0; i < size; i++) {
+            pixels[(size - 1) * size + i] = BLACK;
+            pixels[i * size + size - 1] = BLACK;
+        }
+
+        if (showSelection) {
+            int row = 0;
+            int col = 0;
+            int cells = gridSize;
+            for (int index : blockyTree.getSelectedPath()) {
+                cells /= 2;
+                if (index == 0 || index == 3) {
+                    col += cells;
+                }
+                if (index >= 2) {
+                    row += cells;
+                }
+            }
+            highlight(edge(row, gridSize), edge(col, gridSize), edge(row + cells, gridSize), edge(col + cells, gridSize));
+        }
+        return pixels;
+    }
+
+    private void renderKernel(Block ref, int row, int col, int cells, int gridSize) {
+        if (ref.hasChildren()) {
+            int half = cells / 2;
+            renderKernel(ref.getChildren()[0], row, col + half, half, gridSize);
+            renderKernel(ref.getChildren()[1], row, col, half, gridSize);
+            renderKernel(ref.getChildren()[2], row + half, col, half, gridSize);
+            renderKernel(ref.getChildren()[3], row + half, col + half, half, gridSize);
+            return;
+        }
+
+        int top = edge(row, gridSize);
+        int left = edge(col, gridSize);
+        int bottom = edge(row + cells, gridSize);
+        int right = edge(col + cells, gridSize);
+        int argb = ARGB[ref.getColor().ordinal()];
+        for (int y = top; y < bottom; y++) {
+            int start = y * size;
+            if (y == top) {
+                Arrays.fill(pixels, start + left, start + right, BLACK);
+            } else {
+                pixels[start + left] = BLACK;
+                Arrays.fill(pixels, start + left + 1, start + right, argb);
+            }
+        }
+    }
+
+    /**
+     * Maps a cell boundary to a pixel boundary, so Blocks of any depth share the
+     * thumbnail exactly instead of losing pixels to repeated halving.
+     */
+    private int edge(int cell, int gridSize) {
+        return (int) ((long) cell * size / gridSize);
+    }
+
+    private void highlight(int top, int left, int bottom, int right) {
+        int r = HIGHLIGHT >>> 16;
+        int g = (HIGHLIGHT >>> 8) & 0xff;
+        int b = HIGHLIGHT & 0xff;
+        for (int y = top; y < bottom; y++) {
+            for (int x = left; x < right; x++) {
+                int p = pixels[y * size + x];
+                pixels[y * size + x] = OPAQUE | blend(p >>> 16 & 0xff, r) << 16 | blend(p >>> 8 & 0xff, g) << 8
+                        | blend(p & 0xff, b);
+            }
+        }
+    }
+
+    private static int blend(int under, int over) {
+        return (over * HIGHLIGHT_ALPHA + under * (255 - HIGHLIGHT_ALPHA) + 127) / 255;
+    }
+
+    /**
+     * Encodes the pixel buffer as an RGBA PNG.
+     *
+     * @return the PNG file's bytes
+     */
+    public byte[] encodePng() {
+        int i = 0;
+        for (int y = 0; y < size; y++) {
+            scanlines[i++] = 1; // "Sub" filter: each byte minus the one a pixel to the left.
+            int previous = 0;
+            for (int x = 0; x < size; x++) {
+                int p = pixels[y * size + x];
+                scanlines[i++] = (byte) ((p >>> 16) - (previous >>> 16));
+                scanlines[i++] = (byte) ((p >>> 8) - (previous >>> 8));
+                scanlines[i++] = (byte) (p - previous);
+                scanlines[i++] = (byte) ((p >>> 24) - (previous >>> 24));
+                previous = p;
+            }
+        }
+
+        deflater.reset();
+        deflater.setInput(scanlines);
+        deflater.finish();
+        int length = 0;
+        while (!deflater.finished()) {
+            if (length == compressed.length) {
+                compressed = Arrays.copyOf(compressed, compressed.length * 2);
+            }
+            length += deflater.deflate(compressed, length, compressed.length - length);
+        }
+
+        png.reset();
+        png.write(PNG_SIGNATURE, 0, PNG_SIGNATURE.length);
+        byte[] header = new byte[13];
+        putInt(header, 0, size);
+        putInt(header, 4, size);
+        header[8] = 8; // Bits per channel.
+        header[9] = 6; // RGBA.
+        writeChunk("IHDR", header, header.length);
+        writeChunk("IDAT", compressed, length);
+        writeChunk("IEND", header, 0);
+        return png.toByteArray();
+    }
+
+    /**
+     * Frees the native memory of the Deflater. The renderer cannot encode after this.
+     */
+    @Override
+    public void close() {
+        deflater.end();
+    }
+
+    private void writeChunk(String type, byte[] data, int length) {
+        byte[] word = new byte[4];
+        putInt(word, 0, length);
+        png.write(word, 0, 4);
+
+        byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+        png.write(typeBytes, 0, 4);
+        png.write(data, 0, length);
+
+        crc.reset();
+        crc.update(typeBytes);
+        crc.update(data, 0, length);
+        putInt(word, 0, (int) crc.getValue());
+        png.write(word, 0, 4);
+    }
+
+    private static void putInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+
+    /**
+     * Renders boards into PNG files on a pool of threads, one renderer per thread.
+     * Board i is written to dir/board-i.png. The renderers are closed before returning.
+     *
+     * @param boards        the boards, which must not change while rendering
+     * @param dir           the directory to write to
+     * @param size          the thumbnail size in pixels
+     * @param showSelection whether to highlight each board's selected Block
+     * @param threads       the number of threads
+     */
+    public static void renderAll(List<BlockyTree> boards, Path dir, int size, boolean showSelection, int threads)
+            throws IOException, InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<ThumbnailRenderer> created = new ArrayList<>();
+        ThreadLocal<ThumbnailRenderer> renderers = ThreadLocal.withInitial(() -> {
+            ThumbnailRenderer renderer = new ThumbnailRenderer(size, showSelection);
+            synchronized (created) {
+                created.add(renderer);
+            }
+            return renderer;
+        });
+        try {
+            List<Future<?>> results = new ArrayList<>();
+            for (int i = 0; i < boards.size(); i++) {
+                BlockyTree board = boards.get(i);
+                Path file = dir.resolve("board-" + i + ".png");
+                results.add(pool.submit(() -> {
+                    ThumbnailRenderer renderer = renderers.get();
+                    renderer.render(board);
+                    try {
+                        Files.write(file, renderer.encodePng());
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }));
+            }
+            for (Future<?> result : results) {
+                result.get();
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            // Renders already queued still run after a failure, so wait for them
+            // before freeing the Deflaters they use.
+            pool.shutdown();
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            synchronized (created) {
+                for (ThumbnailRenderer renderer : created) {
+                    renderer.close();
+                }
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        System.setProperty("java.awt.headless", "true");
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int size = args.length > 1 ? Integer.parseInt(args[1]) : 128;
+        int depth = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        int threads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+        Path dir = Paths.get(args.length > 4 ? args[4] : "thumbnails");
+        Files.createDirectories(dir);
+
+        List<BlockyTree> boards = new ArrayList<>();
+        Random random = new Random(1);
+        for (int i = 0; i < count; i++) {
+            BlockyTree board = new BlockyTree(depth, new Random(random.nextLong()));
+            board.buildRandomTree();
+            boards.add(board);
+        }
+
+        long start = System.nanoTime();
+        renderAll(boards, dir, size, true, threads);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%d thumbnails in %.2f s: %.0f/s on %d threads%n", count, seconds, count / seconds, threads);
+    }
+}
@@ -0,0 +1,92 @@
+/**
+ * Where a board is shown on screen: a square of pixels that the board's grid of
+ * cells is stretched over.
+ * <p>
+ * Blocks know nothing about pixels; drawing and clicking go through a Viewport, so
+ * the same board can be shown at any size, and cell boundaries are mapped one by one
+ * instead of halving a pixel size per level.
+ */
+public class Viewport {
+    public static final Viewport DEFAULT = new Viewport(0, 0, 400);
+
+    private final int left;
+    private final int top;
+    private final int size;
+
+    /**
+     * Creates a viewport.
+     *
+     * @param left the x coordinate of the board's left edge
+     * @param top  the y coordinate of the board's top edge
+     * @param size the width and height of the board in pixels
+     */
+    public Viewport(int left, int top, int size) {
+        this.left = left;
+        this.top = top;
+        this.size = size;
+    }
+
+    public int left() {
+        return left;
+    }
+
+    public int top() {
+        return top;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Maps a column boundary to an x coordinate.
+     *
+     * @param col      the column, 0 to gridSize
+     * @param gridSize the number of cells across the board
+     * @return the x coordinate
+     */
+    public int x(int col, int gridSize) {
+        return left + (int) ((long) col * size / gridSize);
+    }
+
+    /**
+     * Maps a row boundary to a y coordinate.
+     *
+     * @param row      the row, 0 to gridSize
+     * @param gridSize the number of cells across the board
+     * @return the y coordinate
+     */
+    public int y(int row, int gridSize) {
+        return top + (int) ((long) row * size / gridSize);
+    }
+
+    /**
+     * Finds the column under an x coordinate.
+     *
+     * @param x        the x coordinate
+     * @param gridSize the number of cells across the board
+     * @return the column, or -1 if x is outside the board
+     */
+    public int col(int x, int gridSize) {
+        return cell(x - left, gridSize);
+    }
+
+    /**
+     * Finds the row under a y coordinate.
+     *
+     * @param y        the y coordinate
+     * @param gridSize the number of cells across the board
+     * @return the row, or -1 if y is outside the board
+     */
+    public int row(int y, int gridSize) {
+        return cell(y - top, gridSize);
+    }
+
+    private int cell(int offset, int gridSize) {
+        if (offset < 0 || offset >= size) {
+            return -1;
+        }
+        // The inverse of x and y: the last cell whose boundary is at or before offset.
+        return (int) (((long) offset * gridSize + gridSize - 1) / size);
+    }
+}